@@ -184,6 +184,17 @@ public class AutoGrader {
 		currentThread = thread;
 	}
 
+	/**
+	 * Notify the autograder that the idle thread is yielding to itself, so
+	 * that nothing can run until the next interrupt.
+	 * <tt>KThread.runNextThread()</tt> calls this method, with interrupts
+	 * disabled, when <tt>KThread.idleFastForward</tt> is set. Advances the
+	 * simulated time to just before the next pending interrupt.
+	 */
+	public void idleUntilNextInterrupt() {
+		privilege.interrupt.skipToNextInterrupt();
+	}
+
 	/**
 	 * Notify the autograder that the current thread has finished.
 	 * <tt>KThread.finish()</tt> <i>must</i> call this method before putting the
@@ -0,0 +1,552 @@
+package nachos.ag;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs a batch of independent Nachos machines, several at a time, and
+ * collects their results into one report.
+ *
+ * <p>
+ * The batch file lists one machine per line, as the arguments that would be
+ * passed to <tt>nachos.machine.Machine</tt>, optionally followed by
+ * <tt>&lt; <i>file</i></tt> to supply console input; blank lines and lines
+ * starting with <tt>#</tt> are ignored. For example:
+ *
+ * <pre>
+ * -[] nachos.conf -x halt.coff
+ * -[] nachos.conf -x echo.coff -s 3 &lt; echo.in
+ * </pre>
+ *
+ * <p>
+ * All the machines run in this JVM, so none of them pays for starting a JVM.
+ * Each is loaded by its own class loader, which gives it its own copy of
+ * every static: the machine, its statistics and its configuration. A
+ * machine's exit handler records its exit status instead of exiting the JVM,
+ * and then blocks the halting thread for good. What the machine's threads
+ * write to <tt>System.out</tt> and <tt>System.err</tt> is captured for its
+ * report, and they read <tt>System.in</tt> from its input file.
+ *
+ * <p>
+ * The security manager of the machine that started last is the one
+ * installed, and it trusts the threads of every other machine, so machines
+ * in a batch are not sandboxed as a lone machine is. A machine still
+ * running after <tt>-t</tt> seconds is reported as timed out, but cannot be
+ * stopped; its threads go on running until the batch finishes.
+ *
+ * <p>
+ * Each machine gets a private copy of the stub file system directory named
+ * by its configuration, so machines that write files cannot see each
+ * other's, and sees end-of-file on the console unless an input file is
+ * given. At most <tt>-j</tt> machines (by default, one per host processor)
+ * run at once.
+ *
+ * <p>
+ * Usage: <tt>java nachos.ag.BatchRunner [-j <i>jobs</i>] [-t <i>seconds</i>]
+ * [-o <i>report</i>] <i>batchfile</i></tt>
+ */
+public class BatchRunner {
+	/**
+	 * Run the batch described by the command line arguments.
+	 *
+	 * @param args the command line arguments.
+	 */
+	public static void main(String[] args) throws Exception {
+		int numJobs = Runtime.getRuntime().availableProcessors();
+		String reportName = "batch-report.txt";
+		String batchName = null;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-j") && i + 1 < args.length)
+				numJobs = parseNumber(args[++i]);
+			else if (args[i].equals("-t") && i + 1 < args.length)
+				timeout = parseNumber(args[++i]);
+			else if (args[i].equals("-o") && i + 1 < args.length)
+				reportName = args[++i];
+			else if (batchName == null)
+				batchName = args[i];
+			else
+				usage();
+		}
+
+		if (batchName == null || numJobs < 1 || timeout < 0)
+			usage();
+
+		List<Run> runs = new ArrayList<Run>();
+		BufferedReader reader = new BufferedReader(new FileReader(batchName));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if (line.length() > 0 && !line.startsWith("#"))
+				runs.add(new Run(runs.size(), line));
+		}
+		reader.close();
+
+		System.setOut(new PrintStream(new RunOutputStream(System.out), true));
+		System.setErr(new PrintStream(new RunOutputStream(System.err), true));
+		System.setIn(new RunInputStream(System.in));
+
+		// a machine's security manager forbids creating class loaders, so
+		// create every machine's before any machine starts
+		URL[] classPath = classPath();
+		for (Run run : runs)
+			run.loader = new URLClassLoader(classPath,
+					ClassLoader.getPlatformClassLoader());
+
+		ExecutorService executor = Executors.newFixedThreadPool(numJobs);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (Run run : runs)
+			futures.add(executor.submit(run));
+		for (int i = 0; i < runs.size(); i++) {
+			try {
+				futures.get(i).get();
+			}
+			catch (ExecutionException e) {
+				runs.get(i).fail(e.getCause());
+			}
+		}
+		executor.shutdown();
+
+		PrintWriter report = new PrintWriter(new FileWriter(reportName));
+		int numFailed = 0;
+
+		for (Run run : runs) {
+			String summary = run.summary();
+			System.out.println(summary);
+			report.println(summary);
+
+			if (run.exitStatus != 0 || run.timedOut)
+				numFailed++;
+		}
+
+		for (Run run : runs) {
+			report.println();
+			report.println("==== " + run.id + ": " + run.arguments);
+			report.print(run.output());
+		}
+		report.close();
+
+		System.out.println(runs.size() + " runs, " + numFailed
+				+ " failed; report in " + reportName);
+		System.out.flush();
+
+		System.exit(numFailed == 0 ? 0 : 1);
+	}
+
+	private static void usage() {
+		System.err.println("usage: java nachos.ag.BatchRunner"
+				+ " [-j jobs] [-t seconds] [-o report] batchfile");
+		System.exit(2);
+	}
+
+	/**
+	 * Return the class path of this JVM, from which each machine's class
+	 * loader loads Nachos afresh.
+	 */
+	private static URL[] classPath() throws IOException {
+		String[] entries = System.getProperty("java.class.path").split(
+				File.pathSeparator);
+
+		URL[] result = new URL[entries.length];
+		for (int i = 0; i < entries.length; i++)
+			result[i] = new File(entries[i]).toURI().toURL();
+
+		return result;
+	}
+
+	private static int parseNumber(String value) {
+		try {
+			return Integer.parseInt(value);
+		}
+		catch (NumberFormatException e) {
+			usage();
+			return -1;
+		}
+	}
+
+	/**
+	 * One Nachos machine in the batch.
+	 */
+	private static class Run implements Runnable {
+		Run(int id, String line) {
+			this.id = id;
+
+			int redirect = line.indexOf(" < ");
+			if (redirect >= 0) {
+				arguments = line.substring(0, redirect).trim();
+				inputFileName = line.substring(redirect + 3).trim();
+			}
+			else {
+				arguments = line;
+				inputFileName = null;
+			}
+		}
+
+		public void run() {
+			long startTime = System.currentTimeMillis();
+			File directory = null;
+
+			try {
+				directory = File.createTempFile("nachos-batch-" + id + "-", "");
+				directory.delete();
+				directory.mkdir();
+				fillDirectory(directory);
+
+				if (inputFileName != null)
+					input = new FileInputStream(inputFileName);
+
+				final String[] machineArguments = instanceArguments(directory)
+						.toArray(new String[0]);
+
+				Class<?> machine = loader.loadClass("nachos.machine.Machine");
+				machine.getMethod("setExitHandler", IntConsumer.class).invoke(
+						null, new IntConsumer() {
+							public void accept(int exitStatus) {
+								halt(exitStatus);
+							}
+						});
+				final Method main = machine.getMethod("main", String[].class);
+
+				// the machine's own threads are started from this one, so they
+				// inherit its run and are daemons too
+				Thread thread = new Thread(new Runnable() {
+					public void run() {
+						currentRun.set(Run.this);
+						try {
+							main.invoke(null, (Object) machineArguments);
+						}
+						catch (InvocationTargetException e) {
+							fail(e.getCause());
+						}
+						catch (Throwable e) {
+							fail(e);
+						}
+					}
+				}, "nachos-batch-" + id);
+				thread.setDaemon(true);
+				thread.start();
+
+				if (timeout > 0) {
+					if (!finished.await(timeout, TimeUnit.SECONDS))
+						timedOut = true;
+				}
+				else {
+					finished.await();
+				}
+			}
+			catch (Exception e) {
+				fail(e);
+			}
+			finally {
+				// a machine that timed out may still be using its files
+				if (!timedOut) {
+					close(input);
+					close(loader);
+				}
+				if (directory != null)
+					delete(directory);
+			}
+
+			elapsed = System.currentTimeMillis() - startTime;
+		}
+
+		/**
+		 * Called by the machine's exit handler. Record the exit status, then
+		 * block the halting thread, since it must not return into the machine.
+		 */
+		private void halt(int exitStatus) {
+			synchronized (this) {
+				if (finished.getCount() > 0) {
+					this.exitStatus = exitStatus;
+					finished.countDown();
+				}
+			}
+
+			while (true)
+				LockSupport.park();
+		}
+
+		/**
+		 * Record that this run failed with the specified exception, rather
+		 * than halting.
+		 */
+		synchronized void fail(Throwable e) {
+			errors.append(e).append("\n");
+			exitStatus = -1;
+			finished.countDown();
+		}
+
+		/**
+		 * Return everything this run's machine wrote, followed by any
+		 * exception that ended it.
+		 */
+		synchronized String output() {
+			return console.toString() + errors;
+		}
+
+		/**
+		 * Return a one-line summary of this run: its status, time, and the
+		 * tick counts it printed, if any.
+		 */
+		String summary() {
+			String ticks = "";
+			for (String line : output().split("\n")) {
+				if (line.startsWith("Ticks:"))
+					ticks = line;
+			}
+
+			String status = timedOut ? "TIMEOUT" : exitStatus == 0 ? "ok"
+					: "FAILED(" + exitStatus + ")";
+
+			return id + "\t" + status + "\t" + elapsed + "ms\t" + ticks + "\t"
+					+ arguments;
+		}
+
+		/**
+		 * Fill the specified directory with a private copy of the stub file
+		 * system directory and a configuration file that points the machine
+		 * at it.
+		 */
+		private void fillDirectory(File directory) throws IOException {
+			File testDirectory = new File(directory, "test");
+			testDirectory.mkdir();
+
+			File original = originalTestDirectory();
+			File[] files = original.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					if (file.isFile())
+						copy(file, new File(testDirectory, file.getName()));
+				}
+			}
+
+			PrintWriter config = new PrintWriter(new FileWriter(new File(
+					directory, "nachos.conf")));
+			BufferedReader reader = new BufferedReader(new FileReader(
+					configFileName()));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.trim().startsWith(testDirectoryKey))
+					config.println(line);
+			}
+			reader.close();
+			config.println(testDirectoryKey + " = \"" + testDirectory.getPath()
+					+ "\"");
+			config.close();
+		}
+
+		/**
+		 * Return this run's arguments, with the configuration file replaced by
+		 * the private copy.
+		 */
+		private List<String> instanceArguments(File directory) {
+			List<String> result = new ArrayList<String>();
+			String configPath = new File(directory, "nachos.conf").getPath();
+			String[] words = arguments.split("\\s+");
+
+			for (int i = 0; i < words.length; i++) {
+				if (words[i].equals("-[]") && i + 1 < words.length)
+					i++;
+				else
+					result.add(words[i]);
+			}
+
+			result.add("-[]");
+			result.add(configPath);
+			return result;
+		}
+
+		private String configFileName() {
+			String[] words = arguments.split("\\s+");
+			for (int i = 0; i + 1 < words.length; i++) {
+				if (words[i].equals("-[]"))
+					return words[i + 1];
+			}
+
+			return "nachos.conf";
+		}
+
+		/**
+		 * Return the stub file system directory named by this run's
+		 * configuration, defaulting to <tt>../test</tt> as
+		 * <tt>Machine</tt> does.
+		 */
+		private File originalTestDirectory() throws IOException {
+			BufferedReader reader = new BufferedReader(new FileReader(
+					configFileName()));
+			String line;
+			String name = null;
+			while ((line = reader.readLine()) != null) {
+				int comment = line.indexOf('#');
+				if (comment >= 0)
+					line = line.substring(0, comment);
+
+				int equals = line.indexOf('=');
+				if (equals >= 0
+						&& line.substring(0, equals).trim().equals(testDirectoryKey))
+					name = line.substring(equals + 1).trim().replace("\"", "");
+			}
+			reader.close();
+
+			if (name != null)
+				return new File(name);
+
+			return new File(new File("").getAbsoluteFile().getParentFile(),
+					"test");
+		}
+
+		final int id;
+
+		final String arguments;
+
+		final String inputFileName;
+
+		/** The class loader from which this run's machine is loaded. */
+		URLClassLoader loader;
+
+		/** What this run's machine writes to the console. */
+		final ByteArrayOutputStream console = new ByteArrayOutputStream();
+
+		/** What this run's machine reads from the console. */
+		InputStream input = new ByteArrayInputStream(new byte[0]);
+
+		/** Counted down when the machine exits or fails to start. */
+		final CountDownLatch finished = new CountDownLatch(1);
+
+		private final StringBuilder errors = new StringBuilder();
+
+		int exitStatus;
+
+		boolean timedOut = false;
+
+		long elapsed;
+	}
+
+	private static void close(Closeable closeable) {
+		try {
+			closeable.close();
+		}
+		catch (IOException e) {
+		}
+	}
+
+	private static void copy(File from, File to) throws IOException {
+		InputStream in = new FileInputStream(from);
+		OutputStream out = new FileOutputStream(to);
+		byte[] buffer = new byte[65536];
+		int amount;
+		while ((amount = in.read(buffer)) > 0)
+			out.write(buffer, 0, amount);
+		in.close();
+		out.close();
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+
+	/**
+	 * Sends what a thread writes to the console of the run that started it,
+	 * or, for a thread outside every machine, to the original stream.
+	 */
+	private static class RunOutputStream extends OutputStream {
+		RunOutputStream(OutputStream original) {
+			this.original = original;
+		}
+
+		public void write(int b) throws IOException {
+			Run run = currentRun.get();
+			if (run == null)
+				original.write(b);
+			else
+				run.console.write(b);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			Run run = currentRun.get();
+			if (run == null)
+				original.write(b, off, len);
+			else
+				run.console.write(b, off, len);
+		}
+
+		public void flush() throws IOException {
+			if (currentRun.get() == null)
+				original.flush();
+		}
+
+		private OutputStream original;
+	}
+
+	/**
+	 * Reads the console input of the run that started the current thread,
+	 * or, for a thread outside every machine, the original stream.
+	 */
+	private static class RunInputStream extends InputStream {
+		RunInputStream(InputStream original) {
+			this.original = original;
+		}
+
+		public int read() throws IOException {
+			return stream().read();
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			return stream().read(b, off, len);
+		}
+
+		public int available() throws IOException {
+			return stream().available();
+		}
+
+		private InputStream stream() {
+			Run run = currentRun.get();
+			return (run == null) ? original : run.input;
+		}
+
+		private InputStream original;
+	}
+
+	/** The run whose machine started the current thread, if any. */
+	private static final InheritableThreadLocal<Run> currentRun =
+			new InheritableThreadLocal<Run>();
+
+	/**
+	 * Seconds to wait for a machine to halt before reporting it as timed
+	 * out, or 0 for no limit.
+	 */
+	private static long timeout = 0;
+
+	private static final String testDirectoryKey = "FileSystem.testDirectory";
+}
@@ -82,19 +82,19 @@ public final class Config {
 		}
 		catch (Throwable e) {
 			System.err.println("Error loading " + configFile);
-			System.exit(1);
+			Machine.exit(1);
 		}
 	}
 
 	private static void loadError(int line) {
 		System.err.println("Error in " + configFile + " line " + line);
-		System.exit(1);
+		Machine.exit(1);
 	}
 
 	private static void configError(String message) {
 		System.err.println("");
 		System.err.println("Error in " + configFile + ": " + message);
-		System.exit(1);
+		Machine.exit(1);
 	}
 
 	/**
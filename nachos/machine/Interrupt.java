@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -38,6 +36,15 @@ import java.util.SortedSet;
  * simulation (even with randomized time slices), but it wouldn't work on real
  * hardware. But even though Nachos can't always detect when your program would
  * fail in real life, you should still write properly synchronized code.
+ * 
+ * <p>
+ * Pending interrupts are kept in a binary heap ordered by time and then by
+ * scheduling order. The heap stores slot numbers; each slot holds the time,
+ * sequence number, type and handler of one interrupt in parallel arrays, and
+ * slots are recycled once their interrupt has fired, so scheduling an
+ * interrupt does not allocate. The time of the earliest pending interrupt is
+ * cached so that <tt>tick()</tt>, which runs once per instruction, only has to
+ * compare two numbers until something is actually due.
  */
 public final class Interrupt {
 	/**
@@ -52,7 +59,7 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+		allocateSlots(initialCapacity);
 	}
 
 	/**
@@ -123,12 +130,23 @@ public final class Interrupt {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
 		Lib.debug(dbgInt, "Scheduling the " + type
 				+ " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		if (numPending == heap.length)
+			allocateSlots(heap.length * 2);
+
+		int slot = freeSlots[--numFree];
+		slotTime[slot] = time;
+		slotId[slot] = numPendingInterruptsCreated++;
+		slotType[slot] = type;
+		slotHandler[slot] = handler;
+
+		heap[numPending] = slot;
+		siftUp(numPending++);
+
+		nextDue = slotTime[heap[0]];
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -145,12 +163,53 @@ public final class Interrupt {
 
 		if (Lib.test(dbgInt))
 			System.out.println("== Tick " + stats.totalTicks + " ==");
+		else if (stats.totalTicks < nextDue)
+			return;
+
+		enabled = false;
+		checkIfDue();
+		enabled = true;
+	}
+
+	private void userTicks(int numInstructions) {
+		Stats stats = privilege.stats;
+
+		stats.userTicks += (long) Stats.UserTick * numInstructions;
+		stats.totalTicks += (long) Stats.UserTick * numInstructions;
+
+		if (Lib.test(dbgInt))
+			System.out.println("== Tick " + stats.totalTicks + " ==");
+		else if (stats.totalTicks < nextDue)
+			return;
 
 		enabled = false;
 		checkIfDue();
 		enabled = true;
 	}
 
+	private void skipToNextInterrupt() {
+		Lib.assertTrue(disabled());
+
+		// with interrupt debugging on, keep the per-tick output unchanged
+		if (numPending == 0 || Lib.test(dbgInt))
+			return;
+
+		Stats stats = privilege.stats;
+		long skipped = (nextDue - stats.totalTicks - 1) / Stats.KernelTick;
+
+		if (skipped > 0) {
+			stats.kernelTicks += skipped * Stats.KernelTick;
+			stats.totalTicks += skipped * Stats.KernelTick;
+		}
+	}
+
+	private long timeUntilNextInterrupt() {
+		if (numPending == 0)
+			return Long.MAX_VALUE;
+
+		return nextDue - privilege.stats.totalTicks;
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -159,27 +218,26 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
-			return;
-
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (nextDue > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+		while (nextDue <= time) {
+			int slot = heap[0];
+			String type = slotType[slot];
+			Runnable handler = slotHandler[slot];
 
-			Lib.assertTrue(next.time <= time);
+			Lib.assertTrue(slotTime[slot] <= time);
+
+			removeFirst();
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			Lib.debug(dbgInt, "  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
@@ -190,46 +248,117 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
-			System.out.println("  " + toOccur.type + ", scheduled at "
-					+ toOccur.time);
+		// the heap is only partially ordered, so sort a copy for printing
+		int[] sorted = Arrays.copyOf(heap, numPending);
+		for (int i = 1; i < sorted.length; i++) {
+			int slot = sorted[i];
+			int j = i;
+			for (; j > 0 && before(slot, sorted[j - 1]); j--)
+				sorted[j] = sorted[j - 1];
+			sorted[j] = slot;
+		}
+
+		for (int i = 0; i < sorted.length; i++) {
+			System.out.println("  " + slotType[sorted[i]] + ", scheduled at "
+					+ slotTime[sorted[i]]);
 		}
 
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
+	/**
+	 * Remove the earliest pending interrupt from the heap and return its slot
+	 * to the free list.
+	 */
+	private void removeFirst() {
+		int slot = heap[0];
+		slotType[slot] = null;
+		slotHandler[slot] = null;
+		freeSlots[numFree++] = slot;
+
+		numPending--;
+		if (numPending > 0) {
+			heap[0] = heap[numPending];
+			siftDown(0);
+			nextDue = slotTime[heap[0]];
+		}
+		else {
+			nextDue = Long.MAX_VALUE;
 		}
+	}
+
+	private void siftUp(int i) {
+		int slot = heap[i];
 
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
+		while (i > 0) {
+			int parent = (i - 1) >> 1;
+			if (!before(slot, heap[parent]))
+				break;
 
-			// can't return 0 for unequal objects, so check all fields
-			if (time < toOccur.time)
-				return -1;
-			else if (time > toOccur.time)
-				return 1;
-			else if (id < toOccur.id)
-				return -1;
-			else if (id > toOccur.id)
-				return 1;
-			else
-				return 0;
+			heap[i] = heap[parent];
+			i = parent;
 		}
 
-		long time;
+		heap[i] = slot;
+	}
+
+	private void siftDown(int i) {
+		int slot = heap[i];
 
-		String type;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= numPending)
+				break;
+			if (child + 1 < numPending && before(heap[child + 1], heap[child]))
+				child++;
+			if (!before(heap[child], slot))
+				break;
+
+			heap[i] = heap[child];
+			i = child;
+		}
 
-		Runnable handler;
+		heap[i] = slot;
+	}
 
-		private long id;
+	/**
+	 * Test whether the interrupt in slot <i>a</i> must occur before the one in
+	 * slot <i>b</i>. Interrupts scheduled for the same time occur in the order
+	 * they were scheduled.
+	 */
+	private boolean before(int a, int b) {
+		if (slotTime[a] != slotTime[b])
+			return slotTime[a] < slotTime[b];
+		else
+			return slotId[a] < slotId[b];
+	}
+
+	/**
+	 * Grow the heap and slot arrays to the specified capacity, adding the new
+	 * slots to the free list.
+	 */
+	private void allocateSlots(int capacity) {
+		int oldCapacity = (heap == null) ? 0 : heap.length;
+
+		if (oldCapacity == 0) {
+			heap = new int[capacity];
+			freeSlots = new int[capacity];
+			slotTime = new long[capacity];
+			slotId = new long[capacity];
+			slotType = new String[capacity];
+			slotHandler = new Runnable[capacity];
+		}
+		else {
+			heap = Arrays.copyOf(heap, capacity);
+			freeSlots = Arrays.copyOf(freeSlots, capacity);
+			slotTime = Arrays.copyOf(slotTime, capacity);
+			slotId = Arrays.copyOf(slotId, capacity);
+			slotType = Arrays.copyOf(slotType, capacity);
+			slotHandler = Arrays.copyOf(slotHandler, capacity);
+		}
+
+		for (int slot = capacity - 1; slot >= oldCapacity; slot--)
+			freeSlots[numFree++] = slot;
 	}
 
 	private long numPendingInterruptsCreated = 0;
@@ -238,7 +367,28 @@ public final class Interrupt {
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	/** Slot numbers of the pending interrupts, as a binary heap. */
+	private int[] heap;
+
+	private int numPending = 0;
+
+	/** Slots not currently holding a pending interrupt. */
+	private int[] freeSlots;
+
+	private int numFree = 0;
+
+	private long[] slotTime;
+
+	private long[] slotId;
+
+	private String[] slotType;
+
+	private Runnable[] slotHandler;
+
+	/** The time of the earliest pending interrupt. */
+	private long nextDue = Long.MAX_VALUE;
+
+	private static final int initialCapacity = 16;
 
 	private static final char dbgInt = 'i';
 
@@ -250,5 +400,17 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public void userTicks(int numInstructions) {
+			Interrupt.this.userTicks(numInstructions);
+		}
+
+		public long timeUntilNextInterrupt() {
+			return Interrupt.this.timeUntilNextInterrupt();
+		}
+
+		public void skipToNextInterrupt() {
+			Interrupt.this.skipToNextInterrupt();
+		}
 	}
 }
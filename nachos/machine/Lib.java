@@ -472,7 +472,7 @@ public final class Lib {
 	 */
 	public static Class tryLoadClass(String className) {
 		try {
-			return ClassLoader.getSystemClassLoader().loadClass(className);
+			return Lib.class.getClassLoader().loadClass(className);
 		}
 		catch (Throwable e) {
 			return null;
@@ -487,7 +487,7 @@ public final class Lib {
 	 */
 	public static Class loadClass(String className) {
 		try {
-			return ClassLoader.getSystemClassLoader().loadClass(className);
+			return Lib.class.getClassLoader().loadClass(className);
 		}
 		catch (Throwable e) {
 			Machine.terminate(e);
@@ -6,6 +6,7 @@ import nachos.security.*;
 import nachos.ag.*;
 
 import java.io.File;
+import java.util.function.IntConsumer;
 
 /**
  * The master class of the simulated machine. Processes command line arguments,
@@ -55,6 +56,8 @@ public final class Machine {
 		}
 
 		securityManager = new NachosSecurityManager(testDirectory);
+		if (exitHandler != null)
+			securityManager.setExitHandler(exitHandler);
 		privilege = securityManager.getPrivilege();
 
 		privilege.machine = new MachinePrivilege();
@@ -103,6 +106,33 @@ public final class Machine {
 		terminate();
 	}
 
+	/**
+	 * Have this machine pass its exit status to the specified handler instead
+	 * of exiting the JVM. The handler must not return. This lets several
+	 * machines, each loaded by its own class loader, share one JVM. Must be
+	 * called before <tt>main()</tt>.
+	 * 
+	 * @param handler the handler to call when this machine exits.
+	 */
+	public static void setExitHandler(IntConsumer handler) {
+		Lib.assertTrue(args == null && exitHandler == null);
+
+		exitHandler = handler;
+	}
+
+	/**
+	 * Exit before the security manager is installed, through the exit
+	 * handler if there is one.
+	 * 
+	 * @param exitStatus the exit status of the Nachos process.
+	 */
+	static void exit(int exitStatus) {
+		if (exitHandler != null)
+			exitHandler.accept(exitStatus);
+
+		System.exit(exitStatus);
+	}
+
 	/**
 	 * Print stats, and terminate Nachos.
 	 */
@@ -135,7 +165,7 @@ public final class Machine {
 				}
 				else if (arg.equals("-h")) {
 					System.out.print(help);
-					System.exit(1);
+					exit(1);
 				}
 				else if (arg.equals("-m")) {
 					Lib.assertTrue(i < args.length, "switch without argument");
@@ -161,7 +191,7 @@ public final class Machine {
 				}
 				else if (arg.equals("-z")) {
 					System.out.print(copyright);
-					System.exit(1);
+					exit(1);
 				}
 				// these switches are reserved for the autograder
 				else if (arg.equals("-[]")) {
@@ -323,6 +353,16 @@ public final class Machine {
 		return timer;
 	}
 
+	/**
+	 * Return the runtime statistics. The kernel updates the counters for
+	 * events the hardware cannot see, such as pages read from swap.
+	 * 
+	 * @return the runtime statistics.
+	 */
+	public static Stats stats() {
+		return stats;
+	}
+
 	/**
 	 * Return the hardware elevator bank.
 	 * 
@@ -438,6 +478,8 @@ public final class Machine {
 
 	private static NachosSecurityManager securityManager;
 
+	private static IntConsumer exitHandler = null;
+
 	private static Privilege privilege;
 
 	private static String[] args = null;
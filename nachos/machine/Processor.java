@@ -4,6 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -18,6 +20,14 @@ import nachos.security.*;
  * <p>
  * An instance of a <tt>Processor</tt> also includes pages of physical memory
  * accessible to user programs, the size of which is fixed by the constructor.
+ * 
+ * <p>
+ * The <tt>Processor.engine</tt> configuration key selects how instructions are
+ * executed. The default, <tt>interpreter</tt>, advances simulated time after
+ * every instruction. <tt>block</tt> runs straight-line code up to the next
+ * change of control flow as a unit and advances simulated time once per block,
+ * ending each block no later than the instruction after which the next pending
+ * interrupt falls due, so interrupts are delivered at exactly the same tick.
  */
 public final class Processor {
 	/**
@@ -40,12 +50,19 @@ public final class Processor {
 		// let config file value override
 		usingTLB = Config.getBoolean ("Processor.usingTLB", usingTLB);
 
+		String engine = Config.getString("Processor.engine", engineInterpreter);
+		Lib.assertTrue(engine.equals(engineInterpreter)
+				|| engine.equals(engineBlock), "unknown Processor.engine "
+				+ engine);
+		usingBlockEngine = engine.equals(engineBlock);
+
 		this.numPhysPages = numPhysPages;
 
 		for (int i = 0; i < numUserRegisters; i++)
 			registers[i] = 0;
 
 		mainMemory = new byte[pageSize * numPhysPages];
+		decodedPages = new DecodedInstruction[numPhysPages][];
 
 		if (usingTLB) {
 			translations = new TranslationEntry[tlbSize];
@@ -93,6 +110,11 @@ public final class Processor {
 
 		Instruction inst = new Instruction();
 
+		// the block engine skips the per-instruction debug output
+		if (usingBlockEngine && !Lib.test(dbgProcessor)
+				&& !Lib.test(dbgDisassemble) && !Lib.test(dbgFullDisassemble))
+			runBlocks(inst);
+
 		while (true) {
 			try {
 				inst.run();
@@ -105,6 +127,50 @@ public final class Processor {
 		}
 	}
 
+	/**
+	 * Execute instructions a basic block at a time. A block starts at the
+	 * current PC and extends until control flow leaves the sequential path
+	 * (after a taken branch or jump and its delay slot), the end of the page
+	 * is reached, or the next pending interrupt falls due. The instruction
+	 * page is translated once per block, and simulated time is advanced once
+	 * per block. Never returns.
+	 */
+	private void runBlocks(Instruction inst) {
+		while (true) {
+			int budget = (int) Math.max(1, Math.min(pageSize / 4,
+					privilege.interrupt.timeUntilNextInterrupt()));
+			int executed = 0;
+
+			try {
+				int vaddr = registers[regPC];
+				int paddr = translate(vaddr, 4, false, fetchCache);
+				int pageEnd = paddr - (paddr % pageSize) + pageSize;
+
+				while (true) {
+					int value = Lib.bytesToInt(mainMemory, paddr, 4);
+					inst.run(lookupDecoded(paddr, value));
+					executed++;
+
+					vaddr += 4;
+					paddr += 4;
+					if (executed == budget || paddr == pageEnd
+							|| registers[regPC] != vaddr)
+						break;
+				}
+			}
+			catch (MipsException e) {
+				// the instructions before the faulting one have completed
+				if (executed > 0)
+					privilege.interrupt.userTicks(executed);
+
+				e.handle();
+				executed = 1;
+			}
+
+			privilege.interrupt.userTicks(executed);
+		}
+	}
+
 	/**
 	 * Read and return the contents of the specified CPU register.
 	 * 
@@ -175,6 +241,8 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+
+		invalidateTranslationCaches();
 	}
 
 	/**
@@ -216,6 +284,8 @@ public final class Processor {
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
 		translations[number] = new TranslationEntry(entry);
+
+		invalidateTranslationCaches();
 	}
 
 	/**
@@ -278,20 +348,40 @@ public final class Processor {
 		delayedLoad(0, 0, 0);
 	}
 
+	/**
+	 * Translate a virtual address for a data access. Same as
+	 * <tt>translate(vaddr, size, writing, cache)</tt>, using the read or write
+	 * translation cache as appropriate.
+	 */
+	private int translate(int vaddr, int size, boolean writing)
+			throws MipsException {
+		return translate(vaddr, size, writing, writing ? writeCache
+				: readCache);
+	}
+
 	/**
 	 * Translate a virtual address into a physical address, using either a page
 	 * table or a TLB. Check for alignment, make sure the virtual page is valid,
 	 * make sure a read-only page is not being written, make sure the resulting
 	 * physical page is valid, and then return the resulting physical address.
 	 * 
+	 * <p>
+	 * Recent translations are remembered in <i>cache</i>. A remembered
+	 * translation is only reused if the translation entry it came from is still
+	 * valid, still maps the same physical page, and (when not using a TLB) is
+	 * still the entry in the page table, so changes the kernel makes to its
+	 * page table in place are seen immediately. The <tt>used</tt> and
+	 * <tt>dirty</tt> bits are set on every access either way.
+	 * 
 	 * @param vaddr the virtual address to translate.
 	 * @param size the size of the memory reference (must be 1, 2, or 4).
 	 * @param writing <tt>true</tt> if the memory reference is a write.
+	 * @param cache the translation cache to consult and fill.
 	 * @return the physical address.
 	 * @exception MipsException if a translation error occurred.
 	 */
-	private int translate(int vaddr, int size, boolean writing)
-			throws MipsException {
+	private int translate(int vaddr, int size, boolean writing,
+			TranslationCache cache) throws MipsException {
 		if (Lib.test(dbgProcessor))
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
@@ -306,7 +396,25 @@ public final class Processor {
 		int vpn = pageFromAddress(vaddr);
 		int offset = offsetFromAddress(vaddr);
 
-		TranslationEntry entry = null;
+		int slot = vpn & (TranslationCache.numSlots - 1);
+		TranslationEntry entry = cache.entries[slot];
+
+		if (entry != null && cache.vpns[slot] == vpn && entry.valid
+				&& entry.ppn == cache.ppns[slot]
+				&& !(writing && entry.readOnly)
+				&& (usingTLB || translations[vpn] == entry)) {
+			entry.used = true;
+			if (writing)
+				entry.dirty = true;
+
+			int paddr = (entry.ppn * pageSize) + offset;
+
+			if (Lib.test(dbgProcessor))
+				System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+			return paddr;
+		}
+
+		entry = null;
 
 		// if not using a TLB, then the vpn is an index into the table
 		if (!usingTLB) {
@@ -352,6 +460,10 @@ public final class Processor {
 		if (writing)
 			entry.dirty = true;
 
+		cache.vpns[slot] = vpn;
+		cache.ppns[slot] = ppn;
+		cache.entries[slot] = entry;
+
 		int paddr = (ppn * pageSize) + offset;
 
 		if (Lib.test(dbgProcessor))
@@ -359,6 +471,35 @@ public final class Processor {
 		return paddr;
 	}
 
+	/**
+	 * Forget all remembered translations. Called whenever the page table
+	 * pointer or a TLB entry changes.
+	 */
+	private void invalidateTranslationCaches() {
+		fetchCache.invalidate();
+		readCache.invalidate();
+		writeCache.invalidate();
+	}
+
+	/**
+	 * A small direct-mapped cache of recent virtual page translations,
+	 * indexed by the low bits of the virtual page number.
+	 */
+	private static class TranslationCache {
+		void invalidate() {
+			Arrays.fill(vpns, -1);
+			Arrays.fill(entries, null);
+		}
+
+		static final int numSlots = 16;
+
+		int[] vpns = new int[numSlots];
+
+		int[] ppns = new int[numSlots];
+
+		TranslationEntry[] entries = new TranslationEntry[numSlots];
+	}
+
 	/**
 	 * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
 	 * and return the result.
@@ -402,7 +543,12 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr = translate(vaddr, size, true);
+
+		if (decodedPages[paddr / pageSize] != null)
+			invalidateDecoded(paddr / pageSize);
+
+		Lib.bytesFromInt(mainMemory, paddr, size, value);
 	}
 
 	/**
@@ -549,6 +695,13 @@ public final class Processor {
 	/** <tt>true</tt> if using a software-managed TLB. */
 	private boolean usingTLB;
 
+	/** <tt>true</tt> if using the basic-block execution engine. */
+	private boolean usingBlockEngine;
+
+	private static final String engineInterpreter = "interpreter";
+
+	private static final String engineBlock = "block";
+
 	/** Number of TLB entries. */
 	private int tlbSize = 4;
 
@@ -558,6 +711,11 @@ public final class Processor {
 	 */
 	private TranslationEntry[] translations;
 
+	/** Translation caches for instruction fetches, reads, and writes. */
+	private TranslationCache fetchCache = new TranslationCache(),
+			readCache = new TranslationCache(),
+			writeCache = new TranslationCache();
+
 	/** Size of a page, in bytes. */
 	public static final int pageSize = 0x400;
 
@@ -570,6 +728,13 @@ public final class Processor {
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
 
+	/**
+	 * Pre-decoded instructions, indexed by physical page number and then by
+	 * word offset within the page. Pages that have never been executed from
+	 * are <tt>null</tt>.
+	 */
+	private DecodedInstruction[][] decodedPages;
+
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
@@ -633,6 +798,17 @@ public final class Processor {
 			writeBack();
 		}
 
+		/**
+		 * Execute an instruction that has already been fetched and decoded.
+		 */
+		public void run(DecodedInstruction d) throws MipsException {
+			value = d.value;
+			decoded = d;
+			decode();
+			execute();
+			writeBack();
+		}
+
 		private boolean test(int flag) {
 			return Lib.test(flag, flags);
 		}
@@ -643,78 +819,55 @@ public final class Processor {
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
-		}
+			if (Lib.test(dbgProcessor))
+				System.out.println("\treadMem vaddr=0x"
+						+ Lib.toHexString(registers[regPC]) + ", size=4");
 
-		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
+			int paddr = translate(registers[regPC], 4, false, fetchCache);
+			value = Lib.bytesToInt(mainMemory, paddr, 4);
 
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
-			}
+			if (Lib.test(dbgProcessor))
+				System.out.println("\t\tvalue read=0x"
+						+ Lib.toHexString(value, 8));
 
-			operation = info.operation;
-			name = info.name;
-			format = info.format;
-			flags = info.flags;
+			decoded = lookupDecoded(paddr, value);
+		}
+
+		private void decode() {
+			DecodedInstruction d = decoded;
+
+			op = d.op;
+			rs = d.rs;
+			rt = d.rt;
+			rd = d.rd;
+			sh = d.sh;
+			func = d.func;
+			target = d.target;
+			imm = d.imm;
+
+			operation = d.operation;
+			name = d.name;
+			format = d.format;
+			flags = d.flags;
+			size = d.size;
+			dstReg = d.dstReg;
 
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
 			else if (format == Mips.IFMT)
-				jtarget = registers[regNextPC] + (imm << 2);
+				jtarget = registers[regNextPC] + d.branchOffset;
 			else if (format == Mips.JFMT)
-				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
+				jtarget = (registers[regNextPC] & 0xF0000000) | d.jumpTarget;
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -1085,6 +1238,123 @@ public final class Processor {
 		int mask;
 
 		boolean branch;
+
+		DecodedInstruction decoded;
+	}
+
+	/**
+	 * Return the pre-decoded form of the instruction word <i>value</i> stored
+	 * at physical address <i>paddr</i>, decoding and caching it if necessary.
+	 * The cache is indexed by physical page, so it survives page table and TLB
+	 * changes; an entry is only reused if the word in memory still matches
+	 * the word it was decoded from, which catches writes made by the kernel
+	 * directly through <tt>getMemory()</tt>.
+	 */
+	private DecodedInstruction lookupDecoded(int paddr, int value) {
+		int ppn = paddr / pageSize;
+
+		DecodedInstruction[] page = decodedPages[ppn];
+		if (page == null) {
+			page = new DecodedInstruction[pageSize / 4];
+			decodedPages[ppn] = page;
+		}
+
+		int index = (paddr % pageSize) / 4;
+		DecodedInstruction d = page[index];
+		if (d == null || d.value != value) {
+			d = new DecodedInstruction(value);
+			page[index] = d;
+		}
+
+		return d;
+	}
+
+	/**
+	 * Discard all pre-decoded instructions cached for the specified physical
+	 * page.
+	 */
+	private void invalidateDecoded(int ppn) {
+		decodedPages[ppn] = null;
+	}
+
+	/**
+	 * The parts of an instruction that depend only on the instruction word,
+	 * extracted once so that repeated executions of the same word skip the
+	 * field extraction and opcode table lookups.
+	 */
+	private static class DecodedInstruction {
+		DecodedInstruction(int value) {
+			this.value = value;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
+			int signedImm = Lib.extend(value, 0, 16);
+
+			Mips info;
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			// get memory access size
+			if (Lib.test(Mips.SIZEB, flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, flags))
+				size = 2;
+			else if (Lib.test(Mips.SIZEW, flags))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (Lib.test(Mips.DSTRA, flags))
+				dstReg = regRA;
+			else if (format == Mips.IFMT)
+				dstReg = rt;
+			else if (format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+
+			// branch and jump targets use the sign-extended immediate
+			branchOffset = signedImm << 2;
+			jumpTarget = target << 2;
+
+			// get imm
+			if (Lib.test(Mips.UNSIGNED, flags))
+				imm = signedImm & 0xFFFF;
+			else
+				imm = signedImm;
+		}
+
+		final int value;
+
+		final int op, rs, rt, rd, sh, func, target;
+
+		final int imm, branchOffset, jumpTarget;
+
+		final int operation, format, flags;
+
+		final String name;
+
+		final int size, dstReg;
 	}
 
 	private static class Mips {
@@ -25,12 +25,17 @@ public final class Stats {
 		System.out.println("Console I/O: reads " + numConsoleReads
 				+ ", writes " + numConsoleWrites);
 		System.out.println("Paging: page faults " + numPageFaults
-				+ ", TLB misses " + numTLBMisses);
+				+ ", TLB misses " + numTLBMisses
+				+ (replacementPolicy == null ? "" : ", replacement "
+						+ replacementPolicy));
 		System.out.println("Swap: COFF reads " + numCOFFReads
 				+ ", swap reads " + numSwapReads
 			        + ", swap writes " + numSwapWrites);
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
+
+		if (faultLatencies != null)
+			System.out.print(faultLatencies);
 	}
 
 	/**
@@ -75,6 +80,18 @@ public final class Stats {
         /** The total number of pages written to swap. */
         public int numSwapWrites = 0;
 
+	/**
+	 * The name of the page replacement policy in use, if the kernel has one,
+	 * so that statistics from runs with different policies can be told apart.
+	 */
+	public String replacementPolicy = null;
+
+	/**
+	 * A report of page fault latencies, printed after the other statistics,
+	 * if the kernel keeps one.
+	 */
+	public Object faultLatencies = null;
+
 	/** The total number of packets Nachos has sent to the network. */
 	public int numPacketsSent = 0;
 
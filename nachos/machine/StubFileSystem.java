@@ -8,6 +8,9 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
 
 /**
  * This class implements a file system that redirects all requests to the host
@@ -39,6 +42,39 @@ public class StubFileSystem implements FileSystem {
 		}
 	}
 	
+	/**
+	 * Open a file for reading through a read-only memory mapping of the
+	 * underlying host file. The first read of each page of the file takes the
+	 * same simulated time as a read from a file returned by <tt>open()</tt>;
+	 * later reads of the page are copied straight out of the mapping and take
+	 * only a kernel tick. The file holds no host file descriptor once opened,
+	 * so it does not count against the limit on open files. Writes always
+	 * fail.
+	 * 
+	 * <p>
+	 * The mapping reflects later writes to the file. A file that is recreated
+	 * while mapped gets a new host file rather than being truncated, so the
+	 * mapping keeps the old contents.
+	 * 
+	 * @param name the name of the file to open.
+	 * @return the opened file, or <tt>null</tt> if the file does not exist or
+	 * could not be mapped.
+	 */
+	public OpenFile openMapped(String name) {
+		if (!checkName(name))
+			return null;
+
+		delay();
+
+		MappedOpenFile file = new MappedOpenFile(name);
+		if (file.buffer == null)
+			return null;
+
+		Integer count = mappedCounts.get(name);
+		mappedCounts.put(name, (count == null) ? 1 : count + 1);
+		return file;
+	}
+
 	public int getOpenCount() {
 		return openCount;
 	}
@@ -75,6 +111,23 @@ public class StubFileSystem implements FileSystem {
 		Lib.assertTrue(Machine.timer().getTime() >= time + amount);
 	}
 
+	/**
+	 * Take the single kernel tick of copying out of a mapped page already read
+	 * once, so that the read still takes simulated time, as
+	 * <tt>Lib.strictReadFile()</tt> requires.
+	 */
+	private void copyDelay() {
+		if (Machine.interrupt().disabled()) {
+			delay();
+			return;
+		}
+
+		long time = Machine.timer().getTime();
+		Machine.interrupt().disable();
+		Machine.interrupt().enable();
+		Lib.assertTrue(Machine.timer().getTime() > time);
+	}
+
 	private class StubOpenFile extends OpenFileWithPosition {
 		StubOpenFile(final String name, final boolean truncate)
 				throws IOException {
@@ -103,6 +156,13 @@ public class StubFileSystem implements FileSystem {
 				if (!truncate && !f.exists())
 					return;
 
+				// truncating a mapped file would pull its pages out from under
+				// the mapping, so unlink it and let the mapping keep the old
+				// file
+				if (truncate && mappedCounts.containsKey(getName())
+						&& f.exists() && !f.delete())
+					return;
+
 				file = new RandomAccessFile(f, "rw");
 
 				if (truncate)
@@ -170,8 +230,101 @@ public class StubFileSystem implements FileSystem {
 		private boolean open = false;
 	}
 
+	private class MappedOpenFile extends OpenFileWithPosition {
+		MappedOpenFile(String name) {
+			super(StubFileSystem.this, name);
+
+			final File f = new File(directory, name);
+
+			privilege.doPrivileged(new Runnable() {
+				public void run() {
+					map(f);
+				}
+			});
+		}
+
+		private void map(File f) {
+			try {
+				if (!f.exists())
+					return;
+
+				RandomAccessFile file = new RandomAccessFile(f, "r");
+				try {
+					buffer = file.getChannel().map(
+							FileChannel.MapMode.READ_ONLY, 0, file.length());
+					loaded = new boolean[(buffer.capacity() + pageSize - 1)
+							/ pageSize];
+				}
+				finally {
+					file.close();
+				}
+			}
+			catch (IOException e) {
+			}
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			ByteBuffer mapping = buffer;
+			if (mapping == null || pos < 0)
+				return -1;
+
+			int amount = Math.max(0, Math.min(length, mapping.capacity() - pos));
+			if (amount > 0) {
+				// only the first read of a page goes to the file system
+				int firstPage = pos / pageSize;
+				int lastPage = (pos + amount - 1) / pageSize;
+				boolean miss = false;
+				for (int i = firstPage; i <= lastPage; i++) {
+					miss |= !loaded[i];
+					loaded[i] = true;
+				}
+				if (miss)
+					delay();
+				else
+					copyDelay();
+
+				ByteBuffer view = mapping.duplicate();
+				view.position(pos);
+				view.get(buf, offset, amount);
+			}
+
+			return amount;
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			return -1;
+		}
+
+		public int length() {
+			return (buffer == null) ? -1 : buffer.capacity();
+		}
+
+		public void close() {
+			if (buffer == null)
+				return;
+
+			buffer = null;
+
+			int count = mappedCounts.get(getName());
+			if (count == 1)
+				mappedCounts.remove(getName());
+			else
+				mappedCounts.put(getName(), count - 1);
+		}
+
+		private ByteBuffer buffer = null;
+
+		/** Set for each page of the file that has been read once. */
+		private boolean[] loaded = null;
+	}
+
 	public int openCount = 0;
 
+	/** The number of open mappings of each mapped file. */
+	private HashMap<String, Integer> mappedCounts = new HashMap<String, Integer>();
+
+	private static final int pageSize = Processor.pageSize;
+
 	private static final int maxOpenFiles = 32;
 
 	private Privilege privilege;
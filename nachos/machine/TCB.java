@@ -6,6 +6,7 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
@@ -21,6 +22,18 @@ import java.security.PrivilegedAction;
  * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code. It's
  * against the rules, <i>and</i> it can easily deadlock nachos.
+ * 
+ * <p>
+ * The hand-off between JVM threads is selected by the <tt>TCB.handoff</tt>
+ * configuration key. <tt>monitor</tt> (the default) waits on and notifies the
+ * monitor bound to each TCB; <tt>park</tt> parks and unparks the JVM thread
+ * directly, so a context switch takes no locks. <tt>TCB.maxThreads</tt> raises
+ * the limit on the number of running TCBs, for workloads that need more than
+ * <tt>maxThreads</tt> threads.
+ * 
+ * <p>
+ * If <tt>TCB.pool</tt> is <tt>true</tt>, the JVM thread of a destroyed TCB is
+ * kept in a pool and reused by the next TCB to start, instead of exiting.
  */
 public final class TCB {
 	/**
@@ -39,6 +52,18 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		String handoff = Config.getString("TCB.handoff", handoffMonitor);
+		if (handoff.equals(handoffPark))
+			usingPark = true;
+		else
+			Lib.assertTrue(handoff.equals(handoffMonitor),
+					"unknown TCB.handoff: " + handoff);
+
+		threadLimit = Config.getInteger("TCB.maxThreads", maxThreads);
+		Lib.assertTrue(threadLimit > 0);
+
+		usingPool = Config.getBoolean("TCB.pool", false);
 	}
 
 	/**
@@ -68,7 +93,7 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		Lib.assertTrue(runningThreads.size() < threadLimit);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -89,23 +114,35 @@ public final class TCB {
 
 		this.target = target;
 
-		if (!isFirstTCB) {
+		if (!isFirstTCB && !idleCarriers.isEmpty()) {
+			/*
+			 * A destroyed TCB left its Java thread in the pool, so we hand
+			 * that thread to this TCB instead of making a new one. The
+			 * handshake is the same as for a new Java thread below.
+			 */
+			carrier = idleCarriers.remove(idleCarriers.size() - 1);
+			javaThread = carrier.thread;
+
+			currentTCB.running = false;
+
+			carrier.resume(this);
+			currentTCB.waitForInterrupt();
+		}
+		else if (!isFirstTCB) {
 			/*
 			 * If this is not the first TCB, we have to make a new Java thread
 			 * to run it. Creating Java threads is a privileged operation.
 			 */
-			tcbTarget = new Runnable() {
-				public void run() {
-					threadroot();
-				}
-			};
+			carrier = new Carrier(this);
 
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					javaThread = new Thread(tcbTarget);
+					javaThread = new Thread(carrier);
 				}
 			});
 
+			carrier.thread = javaThread;
+
 			/*
 			 * The Java thread hasn't yet started, but we need to get it
 			 * blocking in yield(). We do this by temporarily turning off the
@@ -258,6 +295,15 @@ public final class TCB {
 			runningThreads.removeElement(this);
 			if (runningThreads.isEmpty())
 				privilege.exit(0);
+
+			/*
+			 * Return our Java thread to the pool before acknowledging the
+			 * destroy, so that the destroying TCB can reuse it right away.
+			 */
+			if (usingPool && carrier != null)
+				carrier.release();
+
+			currentTCB.interrupt();
 		}
 		catch (Throwable e) {
 			System.out.print("\n");
@@ -276,29 +322,57 @@ public final class TCB {
 	 * wait for another TCB to context switch to this TCB. Since this TCB might
 	 * get destroyed instead, we check the <tt>done</tt> flag after waking up.
 	 * If it is set, the TCB that woke us up is waiting for an acknowledgement
-	 * in destroy(). Otherwise, we just set the current TCB to this TCB and
-	 * return.
+	 * in destroy(), which threadroot() sends once the thread has unwound.
+	 * Otherwise, we just set the current TCB to this TCB and return.
 	 */
 	private void yield() {
 		waitForInterrupt();
 
-		if (done) {
-			currentTCB.interrupt();
+		if (done)
 			throw new ThreadDeath();
-		}
 
 		currentTCB = this;
 	}
 
+	/**
+	 * Waits until this TCB's <tt>running</tt> flag is set to <tt>true</tt>.
+	 * <tt>waitForInterrupt()</tt> is used whenever a TCB needs to go to wait
+	 * for its turn to run. This includes the ping-pong process of starting and
+	 * destroying TCBs, as well as in context switching from this TCB to
+	 * another. We don't rely on <tt>currentTCB</tt>, since it is updated by
+	 * <tt>contextSwitch()</tt> before we get called.
+	 */
+	private void waitForInterrupt() {
+		if (usingPark) {
+			// unpark() may come first, in which case park() returns at once
+			while (!running)
+				LockSupport.park(this);
+		}
+		else {
+			waitOnMonitor();
+		}
+	}
+
+	/**
+	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
+	 * and waking its JVM thread. Used in the ping-pong process of starting and
+	 * destroying TCBs, as well as in context switching to this TCB.
+	 */
+	private void interrupt() {
+		if (usingPark) {
+			running = true;
+			LockSupport.unpark(javaThread);
+		}
+		else {
+			notifyMonitor();
+		}
+	}
+
 	/**
 	 * Waits on the monitor bound to this TCB until its <tt>running</tt> flag is
-	 * set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
-	 * needs to go to wait for its turn to run. This includes the ping-pong
-	 * process of starting and destroying TCBs, as well as in context switching
-	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * set to <tt>true</tt>.
 	 */
-	private synchronized void waitForInterrupt() {
+	private synchronized void waitOnMonitor() {
 		while (!running) {
 			try {
 				wait();
@@ -309,12 +383,10 @@ public final class TCB {
 	}
 
 	/**
-	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-	 * and signalling the monitor bound to it. Used in the ping-pong process of
-	 * starting and destroying TCBs, as well as in context switching to this
-	 * TCB.
+	 * Set this TCB's <tt>running</tt> flag to <tt>true</tt> and signal the
+	 * monitor bound to it.
 	 */
-	private synchronized void interrupt() {
+	private synchronized void notifyMonitor() {
 		running = true;
 		notify();
 	}
@@ -346,6 +418,22 @@ public final class TCB {
 	 */
 	public static final int maxThreads = 250;
 
+	/**
+	 * The limit actually enforced on the number of running TCBs, which is
+	 * <tt>maxThreads</tt> unless <tt>TCB.maxThreads</tt> is set.
+	 */
+	private static int threadLimit = maxThreads;
+
+	/**
+	 * <tt>true</tt> if TCBs hand off to each other with
+	 * <tt>LockSupport.park()</tt> and <tt>unpark()</tt> rather than with the
+	 * monitor bound to each TCB.
+	 */
+	private static boolean usingPark = false;
+
+	private static final String handoffMonitor = "monitor",
+			handoffPark = "park";
+
 	/**
 	 * A reference to the currently running TCB. It is initialized to
 	 * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -401,9 +489,10 @@ public final class TCB {
 	 * and have not terminated. <tt>running</tt> is only <tt>true</tt> when the
 	 * associated Java thread ought to run ASAP. When starting or destroying a
 	 * TCB, this is temporarily true for a thread other than that of the current
-	 * TCB.
+	 * TCB. It is volatile because the <tt>park</tt> hand-off reads it without
+	 * holding the monitor.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -418,7 +507,66 @@ public final class TCB {
 
 	private Runnable target;
 
-	private Runnable tcbTarget;
+	/**
+	 * The Java thread running this TCB, as a reusable carrier. <tt>null</tt>
+	 * for the first TCB, which runs on the thread that called
+	 * <tt>Machine.main()</tt>.
+	 */
+	private Carrier carrier = null;
+
+	/**
+	 * The body of a Java thread created for a TCB. It runs the TCB's
+	 * <tt>threadroot()</tt>, and if the TCB is destroyed while pooling is on,
+	 * waits in <tt>idleCarriers</tt> to run another TCB.
+	 */
+	private static class Carrier implements Runnable {
+		Carrier(TCB tcb) {
+			this.tcb = tcb;
+		}
+
+		public void run() {
+			while (true) {
+				TCB current = tcb;
+				current.threadroot();
+
+				// not released to the pool, so the thread exits
+				if (tcb == current)
+					return;
+
+				while (tcb == null)
+					LockSupport.park(this);
+			}
+		}
+
+		/**
+		 * Put this carrier on the idle list. Called on the carrier's own
+		 * thread, once its TCB has been destroyed.
+		 */
+		void release() {
+			tcb = null;
+			idleCarriers.add(this);
+		}
+
+		/**
+		 * Make this idle carrier run the specified TCB.
+		 */
+		void resume(TCB tcb) {
+			this.tcb = tcb;
+			LockSupport.unpark(thread);
+		}
+
+		private volatile TCB tcb;
+
+		Thread thread;
+	}
+
+	/**
+	 * Carriers whose TCBs have been destroyed, waiting to be reused by
+	 * <tt>start(Runnable)</tt>. Only used if <tt>TCB.pool</tt> is set.
+	 */
+	private static Vector<Carrier> idleCarriers = new Vector<Carrier>();
+
+	private static boolean usingPool = false;
 
 	private static class TCBPrivilege implements Privilege.TCBPrivilege {
 		public void associateThread(KThread thread) {
@@ -14,6 +14,7 @@ import java.lang.reflect.ReflectPermission;
 import java.security.PrivilegedAction;
 import java.security.PrivilegedExceptionAction;
 import java.security.PrivilegedActionException;
+import java.util.function.IntConsumer;
 
 /**
  * Protects the environment from malicious Nachos code.
@@ -42,6 +43,20 @@ public class NachosSecurityManager extends SecurityManager {
 		return new PrivilegeProvider();
 	}
 
+	/**
+	 * Pass the exit status to the specified handler, which must not return,
+	 * instead of exiting the JVM. This security manager must not be the
+	 * active security manager.
+	 * 
+	 * @param handler the handler to call on exit.
+	 */
+	public void setExitHandler(IntConsumer handler) {
+		Lib.assertTrue(this != System.getSecurityManager());
+		Lib.assertTrue(exitHandler == null);
+
+		exitHandler = handler;
+	}
+
 	/**
 	 * Install this security manager.
 	 */
@@ -112,6 +127,9 @@ public class NachosSecurityManager extends SecurityManager {
 
 	private void exit(int exitStatus) {
 		forcePrivilege();
+		if (exitHandler != null)
+			exitHandler.accept(exitStatus);
+
 		System.exit(exitStatus);
 	}
 
@@ -326,6 +344,8 @@ public class NachosSecurityManager extends SecurityManager {
 
 	private boolean fullySecure;
 
+	private IntConsumer exitHandler = null;
+
 	private Thread privileged = null;
 
 	private int privilegeCount = 0;
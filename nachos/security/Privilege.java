@@ -157,6 +157,39 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Advance the simulated time by the specified number of user
+		 * instructions at once, then invoke any interrupt handlers that have
+		 * become due. Equivalent to calling <tt>tick(false)</tt>
+		 * <i>numInstructions</i> times, provided no interrupt falls due before
+		 * the last of them.
+		 * 
+		 * @param numInstructions the number of MIPS instructions executed.
+		 */
+		public void userTicks(int numInstructions);
+
+		/**
+		 * Return the number of ticks until the earliest pending interrupt is
+		 * due, or <tt>Long.MAX_VALUE</tt> if no interrupts are pending.
+		 * 
+		 * @return the number of ticks until the next interrupt.
+		 */
+		public long timeUntilNextInterrupt();
+
+		/**
+		 * Advance simulated time up to the next pending interrupt, as if the
+		 * kernel had spun in its idle loop enabling and disabling interrupts
+		 * until then. Interrupts must be disabled; the clock stops one kernel
+		 * tick short of the tick on which the interrupt is due, so that
+		 * re-enabling interrupts takes the last tick and runs the handler
+		 * exactly when the spinning kernel would have.
+		 * 
+		 * <p>
+		 * Does nothing if no interrupt is pending, or if interrupt debugging
+		 * is on.
+		 */
+		public void skipToNextInterrupt();
 	}
 
 	/**
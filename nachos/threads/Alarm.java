@@ -7,6 +7,14 @@ import nachos.machine.*;
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ * 
+ * <p>
+ * Sleeping threads are kept in one of two interchangeable queues, chosen by
+ * the <tt>Alarm.sleepQueue</tt> configuration key: <tt>heap</tt> (the
+ * default) keeps them in a binary heap ordered by wake time, and
+ * <tt>wheel</tt> keeps them in a hierarchical timing wheel, which inserts and
+ * cancels in constant time. Each sleeping thread remembers its queue entry, so
+ * <tt>cancel()</tt> never has to search for it.
  */
 public class Alarm {
 	/**
@@ -17,6 +25,14 @@ public class Alarm {
 	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
 	 */
 	public Alarm() {
+		String queueName = Config.getString("Alarm.sleepQueue", queueHeap);
+		if (queueName.equals(queueWheel))
+			sleepQueue = new TimingWheel(Machine.timer().getTime());
+		else if (queueName.equals(queueHeap))
+			sleepQueue = new HeapSleepQueue();
+		else
+			Lib.assertNotReached("unknown Alarm.sleepQueue: " + queueName);
+
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() {
 				timerInterrupt();
@@ -35,9 +51,12 @@ public class Alarm {
 		
 			
 		boolean intStatus = Machine.interrupt().disable();
-		// Constantly checks to make sure sleepQueue is not empty and has not reached machine's timer
-		while(!sleepQueue.isEmpty() && sleepQueue.peek().wakeTime <= Machine.timer().getTime()) {
-			KThread wakeThread = sleepQueue.poll().thread;
+		// wake every thread whose wake time has been reached
+		long time = Machine.timer().getTime();
+		SleepThread expired;
+		while ((expired = sleepQueue.pollExpired(time)) != null) {
+			KThread wakeThread = expired.thread;
+			wakeThread.alarmEntry = null;
 			if(wakeThread.getCV()!=null) {
 				wakeThread.getCV().cancel(wakeThread);
 			}
@@ -74,7 +93,9 @@ public class Alarm {
 		} else {
 			boolean intStatus = Machine.interrupt().disable();
 			long wakeTime = Machine.timer().getTime() + x;
-			SleepThread sleepThread = new SleepThread(KThread.currentThread(), wakeTime);
+			KThread currentThread = KThread.currentThread();
+			SleepThread sleepThread = new SleepThread(currentThread, wakeTime);
+			currentThread.alarmEntry = sleepThread;
 			sleepQueue.add(sleepThread);
 			KThread.sleep();
 			Machine.interrupt().restore(intStatus);
@@ -92,19 +113,19 @@ public class Alarm {
 	 * @param thread the thread whose timer should be cancelled.
 	 */
     public boolean cancel(KThread thread) {
-		for(SleepThread st : sleepQueue) {
-			if(thread.compareTo(st.thread)==0) {
-				sleepQueue.remove(st);
-				return true;
-			}
-		}
-		return false;
+		SleepThread sleepThread = thread.alarmEntry;
+		if (sleepThread == null)
+			return false;
+
+		sleepQueue.remove(sleepThread);
+		thread.alarmEntry = null;
+		return true;
 	}
 
 	/**
 	 * SleepThread encapsulate KThread and wakeTime
 	 */
-	private class SleepThread implements Comparable<SleepThread>{
+	static class SleepThread implements Comparable<SleepThread>{
 		public KThread thread;
 		public long wakeTime;
 
@@ -122,9 +143,181 @@ public class Alarm {
 			}
 			return 0; // should raise an error.
 		}
+
+		/** The timing wheel list this entry is on, and its neighbours. */
+		int level, slot;
+		SleepThread prev, next;
 	}
-	
-	public PriorityQueue<SleepThread> sleepQueue = new PriorityQueue<SleepThread>();
+
+	/**
+	 * A set of sleeping threads, ordered by wake time.
+	 */
+	private interface SleepQueue {
+		void add(SleepThread sleepThread);
+
+		void remove(SleepThread sleepThread);
+
+		/**
+		 * Remove and return a thread whose wake time is at or before
+		 * <i>time</i>, or return <tt>null</tt> if there is none. Once this
+		 * returns <tt>null</tt>, <i>time</i> must not decrease.
+		 */
+		SleepThread pollExpired(long time);
+	}
+
+	/**
+	 * A sleep queue backed by a binary heap.
+	 */
+	private static class HeapSleepQueue implements SleepQueue {
+		public void add(SleepThread sleepThread) {
+			heap.add(sleepThread);
+		}
+
+		public void remove(SleepThread sleepThread) {
+			heap.remove(sleepThread);
+		}
+
+		public SleepThread pollExpired(long time) {
+			if (heap.isEmpty() || heap.peek().wakeTime > time)
+				return null;
+
+			return heap.poll();
+		}
+
+		private PriorityQueue<SleepThread> heap = new PriorityQueue<SleepThread>();
+	}
+
+	/**
+	 * A sleep queue backed by a hierarchical timing wheel. Each level has 64
+	 * slots; a slot on level <i>k</i> covers 64<sup><i>k</i></sup> ticks, and
+	 * each slot holds a doubly linked list of entries.
+	 * 
+	 * <p>
+	 * An entry is placed on the level of the highest base-64 digit in which
+	 * its wake time differs from the wheel's current time, in the slot given by
+	 * that digit. Each level therefore has a 64-bit occupancy mask, and the next
+	 * slot that needs attention is the lowest set bit on the lowest non-empty
+	 * level. When the wheel reaches the start of that slot, its entries are
+	 * either due or move down to a finer level.
+	 */
+	private static class TimingWheel implements SleepQueue {
+		TimingWheel(long time) {
+			current = time;
+		}
+
+		public void add(SleepThread sleepThread) {
+			if (sleepThread.wakeTime <= current) {
+				link(sleepThread, dueLevel, 0);
+				return;
+			}
+
+			long diff = sleepThread.wakeTime ^ current;
+			int level = (63 - Long.numberOfLeadingZeros(diff)) / slotBits;
+			int slot = (int) (sleepThread.wakeTime >>> (level * slotBits))
+					& slotMask;
+
+			link(sleepThread, level, slot);
+		}
+
+		public void remove(SleepThread sleepThread) {
+			int level = sleepThread.level;
+			int slot = sleepThread.slot;
+
+			if (sleepThread.prev != null)
+				sleepThread.prev.next = sleepThread.next;
+			else if (level == dueLevel)
+				due = sleepThread.next;
+			else
+				slots[level][slot] = sleepThread.next;
+
+			if (sleepThread.next != null)
+				sleepThread.next.prev = sleepThread.prev;
+
+			sleepThread.prev = sleepThread.next = null;
+
+			if (level != dueLevel && slots[level][slot] == null)
+				occupied[level] &= ~(1L << slot);
+		}
+
+		public SleepThread pollExpired(long time) {
+			while (due == null) {
+				int level = 0;
+				while (level < numLevels && occupied[level] == 0)
+					level++;
+
+				if (level == numLevels) {
+					current = Math.max(current, time);
+					return null;
+				}
+
+				int slot = Long.numberOfTrailingZeros(occupied[level]);
+				int shift = level * slotBits;
+				long prefix = (shift + slotBits >= 64) ? 0 : current
+						& -(1L << (shift + slotBits));
+				long slotStart = prefix | ((long) slot << shift);
+
+				if (slotStart > time) {
+					current = Math.max(current, time);
+					return null;
+				}
+
+				// move to the start of the slot and redistribute its entries
+				current = slotStart;
+
+				SleepThread sleepThread = slots[level][slot];
+				slots[level][slot] = null;
+				occupied[level] &= ~(1L << slot);
+
+				while (sleepThread != null) {
+					SleepThread next = sleepThread.next;
+					sleepThread.prev = sleepThread.next = null;
+					add(sleepThread);
+					sleepThread = next;
+				}
+			}
+
+			SleepThread sleepThread = due;
+			remove(sleepThread);
+			return sleepThread;
+		}
+
+		private void link(SleepThread sleepThread, int level, int slot) {
+			sleepThread.level = level;
+			sleepThread.slot = slot;
+			sleepThread.prev = null;
+
+			if (level == dueLevel) {
+				sleepThread.next = due;
+				due = sleepThread;
+			}
+			else {
+				sleepThread.next = slots[level][slot];
+				slots[level][slot] = sleepThread;
+				occupied[level] |= 1L << slot;
+			}
+
+			if (sleepThread.next != null)
+				sleepThread.next.prev = sleepThread;
+		}
+
+		private static final int slotBits = 6;
+		private static final int slotMask = (1 << slotBits) - 1;
+		private static final int numLevels = (64 + slotBits - 1) / slotBits;
+		private static final int dueLevel = -1;
+
+		/** The time up to which the wheel has been advanced. */
+		private long current;
+
+		private SleepThread[][] slots = new SleepThread[numLevels][1 << slotBits];
+		private long[] occupied = new long[numLevels];
+
+		/** Entries whose wake time has been reached. */
+		private SleepThread due = null;
+	}
+
+	private SleepQueue sleepQueue;
+
+	private static final String queueHeap = "heap", queueWheel = "wheel";
 	
 	// sample alarm test, makes sure Alarm is waiting
 	public static void alarmTest1() {
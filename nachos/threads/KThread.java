@@ -58,8 +58,15 @@ public class KThread {
 			tcb = new TCB();
 		}
 		else {
-			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
-			readyQueue.acquire(this);
+			numProcessors = Config.getInteger("Machine.numProcessors", 1);
+			Lib.assertTrue(numProcessors >= 1);
+
+			readyQueues = ThreadedKernel.scheduler
+					.newReadyQueues(numProcessors);
+			readyQueues[0].acquire(this);
+
+			idleFastForward = Config.getBoolean("KThread.idleFastForward",
+					false);
 
 			currentThread = this;
 			tcb = TCB.currentTCB();
@@ -222,7 +229,7 @@ public class KThread {
 	 * <p>
 	 * Returns immediately if no other thread is ready to run. Otherwise returns
 	 * when the current thread is chosen to run again by
-	 * <tt>readyQueue.nextThread()</tt>.
+	 * the scheduler.
 	 * 
 	 * <p>
 	 * Interrupts are disabled, so that the current thread can atomically add
@@ -278,7 +285,7 @@ public class KThread {
 
 		status = statusReady;
 		if (this != idleThread)
-			readyQueue.waitForAccess(this);
+			readyQueues[processor].waitForAccess(this);
 
 		Machine.autoGrader().readyThread(this);
 	}
@@ -334,9 +341,28 @@ public class KThread {
 	 * using <tt>run()</tt>.
 	 */
 	private static void runNextThread() {
-		KThread nextThread = readyQueue.nextThread();
-		if (nextThread == null)
+		// the simulated processors take turns dispatching
+		if (numProcessors > 1)
+			currentProcessor = (currentProcessor + 1) % numProcessors;
+
+		KThread nextThread = ThreadedKernel.scheduler.nextThread(readyQueues,
+				currentProcessor);
+
+		// a thread taken from another processor's queue moves to this one
+		if (nextThread != null && nextThread.processor != currentProcessor) {
+			Lib.debug(dbgThread, "Processor " + currentProcessor + " took "
+					+ nextThread.toString() + " from " + nextThread.processor);
+			nextThread.processor = currentProcessor;
+		}
+
+		if (nextThread == null) {
+			// the idle thread is yielding to itself, so nothing can happen
+			// until the next interrupt
+			if (idleFastForward && currentThread == idleThread)
+				Machine.autoGrader().idleUntilNextInterrupt();
+
 			nextThread = idleThread;
+		}
 
 		nextThread.run();
 	}
@@ -608,6 +634,13 @@ public class KThread {
 	 */
 	public Object schedulingState = null;
 
+	/**
+	 * The alarm's record of this thread while it sleeps in
+	 * <tt>Alarm.waitUntil()</tt>, so that the timer can be cancelled without
+	 * searching for it.
+	 */
+	Alarm.SleepThread alarmEntry = null;
+
 	private static final int statusNew = 0;
 
 	private static final int statusReady = 1;
@@ -640,7 +673,24 @@ public class KThread {
 	/** Number of times the KThread constructor was called. */
 	private static int numCreated = 0;
 
-	private static ThreadQueue readyQueue = null;
+	/**
+	 * The ready queue of each simulated processor. There is one unless
+	 * <tt>Machine.numProcessors</tt> is set. A ready thread waits on the
+	 * queue of the processor it last ran on, and the processors take turns
+	 * dispatching; the scheduler chooses among all the queues, so priorities
+	 * and donations apply across processors. The processors are interleaved
+	 * on the one real <tt>Processor</tt>; they share its clock and run one
+	 * thread at a time.
+	 */
+	private static ThreadQueue[] readyQueues = null;
+
+	private static int numProcessors = 1;
+
+	/** The simulated processor that dispatched the current thread. */
+	private static int currentProcessor = 0;
+
+	/** The simulated processor whose ready queue this thread joins. */
+	private int processor = id % numProcessors;
 
 	private static KThread currentThread = null;
 
@@ -648,6 +698,12 @@ public class KThread {
 
 	private static KThread idleThread = null;
 
+	/**
+	 * Whether the idle thread skips the clock ahead to the next interrupt
+	 * instead of spinning until it arrives.
+	 */
+	private static boolean idleFastForward = false;
+
 	private KThread joinThread = null;
 
 	private Condition2 cv = null;
@@ -25,6 +25,14 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking the
  * maximum).
+ * 
+ * <p>
+ * Each queue keeps the tickets of its waiting threads in a Fenwick tree, so
+ * holding a lottery, adding or removing a thread, and changing a thread's
+ * tickets each take O(log n) time. A thread's effective tickets are cached and
+ * changes are passed up the chain of donations as a difference, rather than
+ * being recomputed. Winners are drawn with <tt>Lib.random()</tt>, so a given
+ * random seed always produces the same schedule.
  */
 public class LotteryScheduler extends PriorityScheduler {
 	/**
@@ -41,7 +49,412 @@ public class LotteryScheduler extends PriorityScheduler {
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
+		return new LotteryQueue(transferPriority);
+	}
+
+	/**
+	 * Hold one lottery among the tickets of all the ready queues, so that
+	 * each waiting thread's chance of winning is the same as if the queues
+	 * were one.
+	 */
+	public KThread nextThread(ThreadQueue[] queues, int processor) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long totalTickets = 0;
+		for (ThreadQueue queue : queues)
+			totalTickets += ((LotteryQueue) queue).totalTickets;
+
+		if (totalTickets == 0)
+			return null;
+
+		long ticket = drawTicket(totalTickets);
+		for (ThreadQueue queue : queues) {
+			LotteryQueue lotteryQueue = (LotteryQueue) queue;
+			if (ticket < lotteryQueue.totalTickets)
+				return lotteryQueue.take(ticket);
+
+			ticket -= lotteryQueue.totalTickets;
+		}
+
+		Lib.assertNotReached();
 		return null;
 	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getLotteryState(thread).priority;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return (int) Math.min(getLotteryState(thread).effectiveTickets,
+				Integer.MAX_VALUE);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getLotteryState(thread).setPriority(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the lottery state of the specified thread.
+	 * 
+	 * @param thread the thread whose lottery state to return.
+	 * @return the lottery state of the specified thread.
+	 */
+	protected LotteryState getLotteryState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryState(thread);
+
+		return (LotteryState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 * Waiting thread <i>i</i> occupies slot <i>i</i> of a Fenwick tree whose
+	 * entries are the threads' effective tickets; freed slots are reused.
+	 */
+	protected class LotteryQueue extends ThreadQueue {
+		LotteryQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getLotteryState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getLotteryState(thread).acquire(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (owner != null)
+				owner.release(this);
+
+			if (totalTickets == 0)
+				return null;
+
+			return take(drawTicket(totalTickets));
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 1; i <= capacity; i++) {
+				if (slots[i] != null)
+					System.out.print(slots[i].thread + "("
+							+ slots[i].effectiveTickets + ") ");
+			}
+			System.out.println();
+		}
+
+		/**
+		 * Dequeue the thread holding the specified ticket.
+		 */
+		KThread take(long ticket) {
+			LotteryState winner = slots[find(ticket)];
+			remove(winner);
+			winner.acquire(this);
+
+			return winner.thread;
+		}
+
+		/**
+		 * Return the slot holding the specified ticket, counting tickets from
+		 * slot 1 upwards.
+		 */
+		private int find(long ticket) {
+			int slot = 0;
+
+			for (int step = Integer.highestOneBit(capacity); step > 0; step >>= 1) {
+				if (slot + step <= capacity && tree[slot + step] <= ticket) {
+					slot += step;
+					ticket -= tree[slot];
+				}
+			}
+
+			return slot + 1;
+		}
+
+		void insert(LotteryState state) {
+			if (numFree == 0)
+				grow();
+
+			int slot = freeSlots[--numFree];
+			slots[slot] = state;
+			state.slot = slot;
+			state.waitingOn = this;
+
+			adjust(state, state.effectiveTickets);
+		}
+
+		void remove(LotteryState state) {
+			Lib.assertTrue(state.waitingOn == this);
+
+			adjust(state, -state.effectiveTickets);
+
+			slots[state.slot] = null;
+			freeSlots[numFree++] = state.slot;
+			state.waitingOn = null;
+		}
+
+		/**
+		 * Change the tickets held by a waiting thread.
+		 */
+		void adjust(LotteryState state, long delta) {
+			for (int i = state.slot; i <= capacity; i += i & -i)
+				tree[i] += delta;
+
+			totalTickets += delta;
+		}
+
+		/**
+		 * Double the number of slots and rebuild the tree.
+		 */
+		private void grow() {
+			int newCapacity = Math.max(2 * capacity, initialCapacity);
+
+			LotteryState[] newSlots = new LotteryState[newCapacity + 1];
+			System.arraycopy(slots, 0, newSlots, 0, capacity + 1);
+
+			tree = new long[newCapacity + 1];
+			for (int i = 1; i <= newCapacity; i++) {
+				if (newSlots[i] != null)
+					tree[i] += newSlots[i].effectiveTickets;
+
+				int parent = i + (i & -i);
+				if (parent <= newCapacity)
+					tree[parent] += tree[i];
+			}
+
+			freeSlots = new int[newCapacity];
+			numFree = 0;
+			for (int i = newCapacity; i > capacity; i--)
+				freeSlots[numFree++] = i;
+
+			slots = newSlots;
+			capacity = newCapacity;
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		/**
+		 * The thread that last acquired this queue, if it transfers tickets
+		 * and has not yet been handed on.
+		 */
+		LotteryState owner = null;
+
+		/** The sum of the effective tickets of all waiting threads. */
+		long totalTickets = 0;
+
+		private int capacity = 0;
+
+		/** The waiting thread in each slot, indexed from 1. */
+		private LotteryState[] slots = new LotteryState[1];
+
+		/** The Fenwick tree over the tickets in each slot, indexed from 1. */
+		private long[] tree = new long[1];
+
+		private int[] freeSlots = new int[0];
+
+		private int numFree = 0;
+
+		private static final int initialCapacity = 8;
+	}
+
+	/**
+	 * The lottery state of a thread: its own tickets, its effective tickets
+	 * including donations, the queues it owns, and the queue it is waiting on.
+	 * 
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class LotteryState {
+		/**
+		 * Allocate a new <tt>LotteryState</tt> object and associate it with
+		 * the specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryState(KThread thread) {
+			this.thread = thread;
+
+			priority = priorityDefault;
+			effectiveTickets = priorityDefault;
+		}
+
+		/**
+		 * Set the number of tickets of the associated thread.
+		 * 
+		 * @param priority the new number of tickets.
+		 */
+		public void setPriority(int priority) {
+			long delta = (long) priority - this.priority;
+			this.priority = priority;
+
+			propagate(delta);
+		}
+
+		/**
+		 * Called when the associated thread starts waiting on
+		 * <tt>waitQueue</tt>.
+		 * 
+		 * @param waitQueue the queue that the associated thread is now waiting
+		 * on.
+		 */
+		public void waitForAccess(LotteryQueue waitQueue) {
+			Lib.assertTrue(waitingOn == null);
+
+			waitQueue.insert(this);
+
+			if (waitQueue.transferPriority && waitQueue.owner != null)
+				waitQueue.owner.propagate(effectiveTickets);
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to whatever is
+		 * guarded by <tt>waitQueue</tt>.
+		 * 
+		 * @param waitQueue the queue the associated thread has acquired.
+		 */
+		public void acquire(LotteryQueue waitQueue) {
+			if (!waitQueue.transferPriority)
+				return;
+
+			if (waitQueue.owner != null && waitQueue.owner != this)
+				waitQueue.owner.release(waitQueue);
+
+			if (waitQueue.owner == this)
+				return;
+
+			waitQueue.owner = this;
+			propagate(waitQueue.totalTickets);
+		}
+
+		/**
+		 * Called when the associated thread gives up a ticket-transferring
+		 * queue it owned, so that it no longer receives that queue's
+		 * donation.
+		 */
+		void release(LotteryQueue waitQueue) {
+			Lib.assertTrue(waitQueue.owner == this);
+
+			waitQueue.owner = null;
+			propagate(-waitQueue.totalTickets);
+		}
+
+		/**
+		 * Add <i>delta</i> to the effective tickets of the associated thread
+		 * and of every thread it donates to in turn. Stops if the chain of
+		 * donations loops back on itself, which only a deadlock can cause.
+		 */
+		void propagate(long delta) {
+			long epoch = ++numPropagations;
+
+			for (LotteryState state = this; state != null && delta != 0;) {
+				if (state.lastPropagation == epoch)
+					return;
+				state.lastPropagation = epoch;
+
+				state.effectiveTickets += delta;
+
+				LotteryQueue waitQueue = state.waitingOn;
+				if (waitQueue == null)
+					return;
+
+				waitQueue.adjust(state, delta);
+				state = waitQueue.transferPriority ? waitQueue.owner : null;
+			}
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The number of tickets of the associated thread. */
+		protected int priority;
+
+		/** The tickets of the associated thread plus all donated tickets. */
+		protected long effectiveTickets;
+
+		/** The queue the associated thread is waiting on, if any. */
+		LotteryQueue waitingOn = null;
+
+		/** The slot of the associated thread in <tt>waitingOn</tt>. */
+		int slot;
+
+		private long lastPropagation = 0;
+	}
+
+	/**
+	 * Pick a ticket uniformly from <tt>[0, totalTickets)</tt>.
+	 */
+	private static long drawTicket(long totalTickets) {
+		if (totalTickets <= Integer.MAX_VALUE)
+			return Lib.random((int) totalTickets);
+
+		return Math.min((long) (Lib.random() * totalTickets),
+				totalTickets - 1);
+	}
+
+	private long numPropagations = 0;
 }
@@ -25,6 +25,14 @@ import java.util.Iterator;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ * 
+ * <p>
+ * Each queue keeps one FIFO list per priority level and a bitmap of the
+ * non-empty levels, so choosing the next thread is a single bit scan. Each
+ * thread caches its effective priority; when it changes, the thread moves to
+ * the matching list of the queue it waits on, and the change is passed on to
+ * that queue's owner only if the queue transfers priority. Propagation stops
+ * as soon as an effective priority is left unchanged.
  */
 public class PriorityScheduler extends Scheduler {
 	/**
@@ -44,6 +52,34 @@ public class PriorityScheduler extends Scheduler {
 		return new PriorityQueue(transferPriority);
 	}
 
+	/**
+	 * Choose the next thread from all the ready queues as if they were one:
+	 * the thread with the highest effective priority, and among those the one
+	 * that has been waiting longest.
+	 */
+	public KThread nextThread(ThreadQueue[] queues, int processor) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		PriorityQueue best = null;
+		ThreadState bestState = null;
+
+		for (ThreadQueue queue : queues) {
+			ThreadState state = ((PriorityQueue) queue).pickNextThread();
+			if (state == null)
+				continue;
+
+			if (bestState == null
+					|| state.effectivePriority > bestState.effectivePriority
+					|| (state.effectivePriority == bestState.effectivePriority
+							&& state.waitSequence < bestState.waitSequence)) {
+				best = (PriorityQueue) queue;
+				bestState = state;
+			}
+		}
+
+		return (best == null) ? null : best.nextThread();
+	}
+
 	public int getPriority(KThread thread) {
 		Lib.assertTrue(Machine.interrupt().disabled());
 
@@ -145,8 +181,18 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			ThreadState next = pickNextThread();
+			if (next == null) {
+				if (owner != null)
+					owner.release(this);
+				return null;
+			}
+
+			remove(next);
+			next.acquire(this);
+
+			return next.thread;
 		}
 
 		/**
@@ -156,13 +202,81 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			if (occupied == 0)
+				return null;
+
+			return heads[31 - Integer.numberOfLeadingZeros(occupied)];
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int level = priorityMaximum; level >= priorityMinimum; level--) {
+				for (ThreadState state = heads[level]; state != null; state = state.next)
+					System.out.print(state.thread + "(" + level + ") ");
+			}
+			System.out.println();
+		}
+
+		/**
+		 * Return the highest effective priority of any thread waiting on this
+		 * queue, or <tt>priorityMinimum - 1</tt> if no thread is waiting.
+		 */
+		int maxWaitingPriority() {
+			return 31 - Integer.numberOfLeadingZeros(occupied)
+					+ priorityMinimum;
+		}
+
+		/**
+		 * Add a waiting thread to the list for its effective priority, after
+		 * any thread on that list that started waiting before it.
+		 */
+		void insert(ThreadState state) {
+			int level = state.effectivePriority - priorityMinimum;
+
+			ThreadState prev = tails[level];
+			while (prev != null && prev.waitSequence > state.waitSequence)
+				prev = prev.prev;
+
+			ThreadState next = (prev == null) ? heads[level] : prev.next;
+
+			state.prev = prev;
+			state.next = next;
+			if (prev == null)
+				heads[level] = state;
+			else
+				prev.next = state;
+			if (next == null)
+				tails[level] = state;
+			else
+				next.prev = state;
+
+			occupied |= 1 << level;
+			state.waitingOn = this;
+		}
+
+		/**
+		 * Remove a waiting thread from this queue.
+		 */
+		void remove(ThreadState state) {
+			Lib.assertTrue(state.waitingOn == this);
+
+			int level = state.effectivePriority - priorityMinimum;
+
+			if (state.prev == null)
+				heads[level] = state.next;
+			else
+				state.prev.next = state.next;
+			if (state.next == null)
+				tails[level] = state.prev;
+			else
+				state.next.prev = state.prev;
+
+			if (heads[level] == null)
+				occupied &= ~(1 << level);
+
+			state.prev = state.next = null;
+			state.waitingOn = null;
 		}
 
 		/**
@@ -170,6 +284,22 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/**
+		 * The thread that last acquired this queue, if it transfers priority
+		 * and has not yet been handed on.
+		 */
+		ThreadState owner = null;
+
+		private static final int numLevels = priorityMaximum - priorityMinimum + 1;
+
+		/** The waiting threads at each priority level, oldest first. */
+		private ThreadState[] heads = new ThreadState[numLevels];
+
+		private ThreadState[] tails = new ThreadState[numLevels];
+
+		/** Bit <i>i</i> is set if level <i>i</i> has waiting threads. */
+		private int occupied = 0;
 	}
 
 	/**
@@ -189,6 +319,7 @@ public class PriorityScheduler extends Scheduler {
 		public ThreadState(KThread thread) {
 			this.thread = thread;
 
+			effectivePriority = priority;
 			setPriority(priorityDefault);
 		}
 
@@ -207,8 +338,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -222,7 +352,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
 		}
 
 		/**
@@ -238,7 +368,13 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(waitingOn == null);
+
+			waitSequence = numWaits++;
+			waitQueue.insert(this);
+
+			if (waitQueue.transferPriority && waitQueue.owner != null)
+				waitQueue.owner.updateEffectivePriority();
 		}
 
 		/**
@@ -252,7 +388,57 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			if (!waitQueue.transferPriority)
+				return;
+
+			if (waitQueue.owner != null && waitQueue.owner != this)
+				waitQueue.owner.release(waitQueue);
+
+			waitQueue.owner = this;
+			ownedQueues.add(waitQueue);
+			updateEffectivePriority();
+		}
+
+		/**
+		 * Called when the associated thread gives up a priority-transferring
+		 * queue it owned, so that it no longer receives that queue's donation.
+		 */
+		void release(PriorityQueue waitQueue) {
+			Lib.assertTrue(waitQueue.owner == this);
+
+			waitQueue.owner = null;
+			ownedQueues.remove(waitQueue);
+			updateEffectivePriority();
+		}
+
+		/**
+		 * Recompute the effective priority of the associated thread and, if it
+		 * changed, of every thread it donates to in turn.
+		 */
+		void updateEffectivePriority() {
+			ThreadState state = this;
+
+			while (state != null) {
+				int newPriority = state.priority;
+				for (PriorityQueue queue : state.ownedQueues)
+					newPriority = Math.max(newPriority,
+							queue.maxWaitingPriority());
+
+				if (newPriority == state.effectivePriority)
+					return;
+
+				PriorityQueue waitQueue = state.waitingOn;
+				if (waitQueue != null)
+					waitQueue.remove(state);
+
+				state.effectivePriority = newPriority;
+
+				if (waitQueue == null)
+					return;
+
+				waitQueue.insert(state);
+				state = waitQueue.transferPriority ? waitQueue.owner : null;
+			}
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +446,23 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/** The cached effective priority of the associated thread. */
+		protected int effectivePriority;
+
+		/** The priority-transferring queues the associated thread owns. */
+		protected HashSet<PriorityQueue> ownedQueues = new HashSet<PriorityQueue>();
+
+		/** The queue the associated thread is waiting on, if any. */
+		PriorityQueue waitingOn = null;
+
+		/** When the associated thread started waiting, for FIFO order. */
+		long waitSequence;
+
+		/** Neighbours on the waiting list of <tt>waitingOn</tt>. */
+		ThreadState prev, next;
 	}
+
+	/** The number of times any thread has started waiting on a queue. */
+	private long numWaits = 0;
 }
@@ -50,6 +50,51 @@ public abstract class Scheduler {
 	 */
 	public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+	/**
+	 * Allocate the ready queues of <i>numProcessors</i> simulated processors,
+	 * one per processor. None of them transfer priority. A thread waits on the
+	 * queue of the processor it last ran on, but the queues are dequeued
+	 * together with <tt>nextThread(queues, processor)</tt>.
+	 * 
+	 * @param numProcessors the number of simulated processors.
+	 * @return a new array of <i>numProcessors</i> thread queues.
+	 */
+	public ThreadQueue[] newReadyQueues(int numProcessors) {
+		ThreadQueue[] queues = new ThreadQueue[numProcessors];
+		for (int i = 0; i < numProcessors; i++)
+			queues[i] = newThreadQueue(false);
+
+		return queues;
+	}
+
+	/**
+	 * Choose the next thread for the specified processor to run, from a set
+	 * of queues allocated by <tt>newReadyQueues()</tt>, and dequeue it.
+	 * 
+	 * <p>
+	 * By default this is the next thread in the processor's own queue or,
+	 * if that is empty, the next thread in the first other queue that is not.
+	 * A scheduler with priorities should instead choose from all the queues
+	 * as if they were one, so that a thread is never passed over in favour of
+	 * a lower priority thread that is waiting for another processor.
+	 * 
+	 * @param queues the ready queues of all the processors.
+	 * @param processor the processor that is choosing a thread.
+	 * @return the thread to run, or <tt>null</tt> if every queue is empty.
+	 */
+	public KThread nextThread(ThreadQueue[] queues, int processor) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		for (int i = 0; i < queues.length; i++) {
+			KThread thread = queues[(processor + i) % queues.length]
+					.nextThread();
+			if (thread != null)
+				return thread;
+		}
+
+		return null;
+	}
+
 	/**
 	 * Get the priority of the specified thread. Must be called with interrupts
 	 * disabled.
@@ -0,0 +1,531 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+
+/**
+ * A scheduler that chooses threads using stride scheduling.
+ * 
+ * <p>
+ * Like a lottery scheduler, a stride scheduler gives each thread a share of
+ * access proportional to its number of tickets, but it does so
+ * deterministically. Each thread has a <i>stride</i> inversely proportional
+ * to its tickets, and a <i>pass</i>. The waiting thread with the lowest pass
+ * is always dequeued next, and its pass then advances by its stride, so a
+ * thread with twice the tickets is chosen twice as often.
+ * 
+ * <p>
+ * Each queue keeps its waiting threads in a binary min-heap ordered by pass,
+ * so each decision takes O(log n) time. A thread has a separate pass in each
+ * queue, advanced only when that queue chooses it, so that acquiring a lock
+ * does not set a thread back in the ready queue. A thread rejoining a queue
+ * starts no earlier than the pass of the last thread dequeued from it, so
+ * that a thread that waited elsewhere cannot monopolize the queue to catch
+ * up. Passes are compared by their difference, so they may wrap around. The
+ * ready queues of the simulated processors share one virtual time, so a
+ * thread keeps its pass when it moves to another processor's queue.
+ * 
+ * <p>
+ * Tickets are transferred through queues that transfer priority, and add up as
+ * they do in a lottery scheduler. When a waiting thread's tickets change, the
+ * remainder of its current stride is rescaled to the new stride.
+ */
+public class StrideScheduler extends Scheduler {
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+	}
+
+	/**
+	 * Allocate a new stride thread queue.
+	 * 
+	 * @param transferPriority <tt>true</tt> if this queue should transfer
+	 * tickets from waiting threads to the owning thread.
+	 * @return a new stride thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new StrideQueue(transferPriority);
+	}
+
+	/**
+	 * Allocate ready queues that share the virtual time of the first.
+	 */
+	public ThreadQueue[] newReadyQueues(int numProcessors) {
+		ThreadQueue[] queues = super.newReadyQueues(numProcessors);
+		for (ThreadQueue queue : queues)
+			((StrideQueue) queue).clock = (StrideQueue) queues[0];
+
+		return queues;
+	}
+
+	/**
+	 * Choose the waiting thread with the lowest pass in any of the ready
+	 * queues. Since they share one virtual time, this is the thread a single
+	 * queue holding all of them would choose.
+	 */
+	public KThread nextThread(ThreadQueue[] queues, int processor) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		StrideQueue best = null;
+		StrideState bestState = null;
+
+		for (ThreadQueue queue : queues) {
+			StrideState state = ((StrideQueue) queue).pickNextThread();
+			if (state != null
+					&& (bestState == null || before(state, bestState))) {
+				best = (StrideQueue) queue;
+				bestState = state;
+			}
+		}
+
+		return (best == null) ? null : best.nextThread();
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getStrideState(thread).priority;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return (int) Math.min(getStrideState(thread).effectiveTickets,
+				Integer.MAX_VALUE);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getStrideState(thread).setPriority(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * The stride of a thread with one ticket. Strides are
+	 * <tt>stride1 / tickets</tt>, so this must be large enough for threads
+	 * with many tickets to still have distinct strides. No waiting thread's
+	 * pass is more than <tt>stride1</tt> ahead of its queue's
+	 * <tt>globalPass</tt>.
+	 */
+	private static final long stride1 = 1L << 40;
+
+	/**
+	 * Return the stride state of the specified thread.
+	 * 
+	 * @param thread the thread whose stride state to return.
+	 * @return the stride state of the specified thread.
+	 */
+	protected StrideState getStrideState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new StrideState(thread);
+
+		return (StrideState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that dequeues the waiting thread with the lowest
+	 * pass.
+	 */
+	protected class StrideQueue extends ThreadQueue {
+		StrideQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getStrideState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getStrideState(thread).acquire(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (owner != null)
+				owner.release(this);
+
+			if (size == 0)
+				return null;
+
+			StrideState next = heap[0];
+			remove(next);
+
+			clock.globalPass = next.pass;
+			next.leave(this, next.pass + next.stride);
+
+			next.acquire(this);
+
+			return next.thread;
+		}
+
+		/**
+		 * Return the next thread that <tt>nextThread()</tt> would return,
+		 * without modifying the state of this queue.
+		 */
+		StrideState pickNextThread() {
+			return (size == 0) ? null : heap[0];
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < size; i++)
+				System.out.print(heap[i].thread + "(" + heap[i].pass + ") ");
+			System.out.println();
+		}
+
+		void insert(StrideState state) {
+			if (size == heap.length) {
+				StrideState[] newHeap = new StrideState[2 * heap.length];
+				System.arraycopy(heap, 0, newHeap, 0, size);
+				heap = newHeap;
+			}
+
+			totalTickets += state.effectiveTickets;
+
+			state.waitingOn = this;
+			state.heapIndex = size;
+			heap[size++] = state;
+			siftUp(state.heapIndex);
+		}
+
+		void remove(StrideState state) {
+			Lib.assertTrue(state.waitingOn == this);
+
+			totalTickets -= state.effectiveTickets;
+
+			int i = state.heapIndex;
+			StrideState last = heap[--size];
+			heap[size] = null;
+
+			if (last != state) {
+				heap[i] = last;
+				last.heapIndex = i;
+				siftUp(i);
+				siftDown(last.heapIndex);
+			}
+
+			state.waitingOn = null;
+		}
+
+		/**
+		 * Restore the heap order after the pass of a waiting thread changed.
+		 */
+		void update(StrideState state) {
+			siftUp(state.heapIndex);
+			siftDown(state.heapIndex);
+		}
+
+		private void siftUp(int i) {
+			StrideState state = heap[i];
+
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (!before(state, heap[parent]))
+					break;
+
+				heap[i] = heap[parent];
+				heap[i].heapIndex = i;
+				i = parent;
+			}
+
+			heap[i] = state;
+			state.heapIndex = i;
+		}
+
+		private void siftDown(int i) {
+			StrideState state = heap[i];
+
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= size)
+					break;
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+				if (!before(heap[child], state))
+					break;
+
+				heap[i] = heap[child];
+				heap[i].heapIndex = i;
+				i = child;
+			}
+
+			heap[i] = state;
+			state.heapIndex = i;
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		/**
+		 * The thread that last acquired this queue, if it transfers tickets
+		 * and has not yet been handed on.
+		 */
+		StrideState owner = null;
+
+		/** The sum of the effective tickets of all waiting threads. */
+		long totalTickets = 0;
+
+		/** The pass of the thread most recently dequeued. */
+		long globalPass = 0;
+
+		/**
+		 * The queue whose <tt>globalPass</tt> this queue uses, and under which
+		 * threads' passes in it are saved. This is the queue itself, except
+		 * for ready queues, which share the first one's.
+		 */
+		StrideQueue clock = this;
+
+		private StrideState[] heap = new StrideState[8];
+
+		private int size = 0;
+	}
+
+	/**
+	 * The stride state of a thread: its tickets, its effective tickets
+	 * including donations, its stride and pass, and the queue it is waiting
+	 * on.
+	 * 
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class StrideState {
+		/**
+		 * Allocate a new <tt>StrideState</tt> object and associate it with the
+		 * specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public StrideState(KThread thread) {
+			this.thread = thread;
+
+			priority = priorityDefault;
+			effectiveTickets = priorityDefault;
+			stride = stride1 / effectiveTickets;
+		}
+
+		/**
+		 * Set the number of tickets of the associated thread.
+		 * 
+		 * @param priority the new number of tickets.
+		 */
+		public void setPriority(int priority) {
+			long delta = (long) priority - this.priority;
+			this.priority = priority;
+
+			propagate(delta);
+		}
+
+		/**
+		 * Called when the associated thread starts waiting on
+		 * <tt>waitQueue</tt>.
+		 * 
+		 * @param waitQueue the queue that the associated thread is now waiting
+		 * on.
+		 */
+		public void waitForAccess(StrideQueue waitQueue) {
+			Lib.assertTrue(waitingOn == null);
+
+			// a pass saved too long ago may have been overtaken or wrapped
+			StrideQueue clock = waitQueue.clock;
+			Long saved = (passes == null) ? null : passes.get(clock);
+			long ahead = (saved == null) ? 0 : saved - clock.globalPass;
+			if (ahead > 0 && ahead <= stride1)
+				pass = saved;
+			else
+				pass = clock.globalPass;
+			waitSequence = numWaits++;
+
+			waitQueue.insert(this);
+
+			if (waitQueue.transferPriority && waitQueue.owner != null)
+				waitQueue.owner.propagate(effectiveTickets);
+		}
+
+		/**
+		 * Called when the associated thread is dequeued from <tt>waitQueue</tt>
+		 * to record the pass it resumes at the next time it waits there.
+		 */
+		void leave(StrideQueue waitQueue, long nextPass) {
+			if (passes == null)
+				passes = new HashMap<StrideQueue, Long>();
+
+			passes.put(waitQueue.clock, nextPass);
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to whatever is
+		 * guarded by <tt>waitQueue</tt>.
+		 * 
+		 * @param waitQueue the queue the associated thread has acquired.
+		 */
+		public void acquire(StrideQueue waitQueue) {
+			if (!waitQueue.transferPriority)
+				return;
+
+			if (waitQueue.owner != null && waitQueue.owner != this)
+				waitQueue.owner.release(waitQueue);
+
+			if (waitQueue.owner == this)
+				return;
+
+			waitQueue.owner = this;
+			propagate(waitQueue.totalTickets);
+		}
+
+		/**
+		 * Called when the associated thread gives up a ticket-transferring
+		 * queue it owned, so that it no longer receives that queue's
+		 * donation.
+		 */
+		void release(StrideQueue waitQueue) {
+			Lib.assertTrue(waitQueue.owner == this);
+
+			waitQueue.owner = null;
+			propagate(-waitQueue.totalTickets);
+		}
+
+		/**
+		 * Add <i>delta</i> to the effective tickets of the associated thread
+		 * and of every thread it donates to in turn, rescaling the stride of
+		 * each. Stops if the chain of donations loops back on itself, which
+		 * only a deadlock can cause.
+		 */
+		void propagate(long delta) {
+			long epoch = ++numPropagations;
+
+			for (StrideState state = this; state != null && delta != 0;) {
+				if (state.lastPropagation == epoch)
+					return;
+				state.lastPropagation = epoch;
+
+				long oldStride = state.stride;
+				state.effectiveTickets += delta;
+				state.stride = Math.max(stride1 / state.effectiveTickets, 1);
+
+				StrideQueue waitQueue = state.waitingOn;
+				if (waitQueue == null)
+					return;
+
+				// scale what is left of the current stride to the new one
+				long globalPass = waitQueue.clock.globalPass;
+				long remaining = state.pass - globalPass;
+				if (remaining > 0) {
+					state.pass = globalPass
+							+ (long) ((double) remaining * state.stride / oldStride);
+					waitQueue.update(state);
+				}
+
+				waitQueue.totalTickets += delta;
+				state = waitQueue.transferPriority ? waitQueue.owner : null;
+			}
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The number of tickets of the associated thread. */
+		protected int priority;
+
+		/** The tickets of the associated thread plus all donated tickets. */
+		protected long effectiveTickets;
+
+		/** <tt>stride1</tt> divided by the effective tickets. */
+		protected long stride;
+
+		/**
+		 * The virtual time at which the associated thread is next due in the
+		 * queue it is waiting on.
+		 */
+		protected long pass = 0;
+
+		/**
+		 * The pass at which the associated thread resumes in each queue it
+		 * has been dequeued from; <tt>null</tt> until the first.
+		 */
+		private HashMap<StrideQueue, Long> passes = null;
+
+		/** The queue the associated thread is waiting on, if any. */
+		StrideQueue waitingOn = null;
+
+		int heapIndex;
+
+		long waitSequence;
+
+		private long lastPropagation = 0;
+	}
+
+	/**
+	 * Threads with equal passes are dequeued in the order they started
+	 * waiting. Passes are compared by their difference, which is correct
+	 * across wraparound, since the passes in a queue are never more than
+	 * <tt>stride1</tt> apart.
+	 */
+	private static boolean before(StrideState a, StrideState b) {
+		if (a.pass != b.pass)
+			return a.pass - b.pass < 0;
+		else
+			return a.waitSequence < b.waitSequence;
+	}
+
+	private long numWaits = 0;
+
+	private long numPropagations = 0;
+}
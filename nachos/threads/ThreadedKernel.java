@@ -88,6 +88,8 @@ public class ThreadedKernel extends Kernel {
 
 	private static LotteryScheduler dummy3 = null;
 
+	private static StrideScheduler dummy9 = null;
+
 	private static Condition2 dummy4 = null;
 
 	private static Communicator dummy5 = null;
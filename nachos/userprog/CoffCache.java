@@ -0,0 +1,334 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.io.EOFException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * A cache of loaded executables, shared by every process in the kernel.
+ *
+ * <p>
+ * The first process to run an executable opens it (through a read-only
+ * memory mapping, when the file system is a <tt>StubFileSystem</tt>) and
+ * decodes its headers; later processes running the same executable reuse the
+ * decoded section tables without touching the file system. The pages of
+ * read-only sections are loaded into physical memory once and then mapped
+ * read-only into every process running the executable, so only the writable
+ * sections and the stack take memory of their own. In copy-on-write mode the
+ * pages of writable sections are shared the same way, as pristine copies
+ * that a process copies before its first write.
+ *
+ * <p>
+ * The cache holds one reference to each resident page, and each process
+ * mapping the page holds another, in the kernel's page reference counts. A
+ * page no process maps stays resident, so that running the same program
+ * again does not reload it, until the kernel runs out of free pages and
+ * calls <tt>reclaim()</tt>. An executable that is written, recreated or
+ * removed is dropped from the cache with <tt>invalidate()</tt>; processes
+ * still running it keep their pages.
+ */
+public class CoffCache {
+	/**
+	 * Allocate a new, empty executable cache.
+	 */
+	public CoffCache() {
+	}
+
+	/**
+	 * Return the cached image of the specified executable, loading it if it is
+	 * not cached, and add a reference to it. Every successful call must be
+	 * matched by a call to <tt>release()</tt>.
+	 *
+	 * @param name the name of the file containing the executable.
+	 * @return the executable's image, or <tt>null</tt> if the file could not
+	 * be opened or is not a valid executable.
+	 */
+	public Image acquire(String name) {
+		lock.acquire();
+
+		Image image = images.get(name);
+		if (image == null) {
+			image = load(name);
+			if (image != null)
+				images.put(name, image);
+		}
+		else {
+			Lib.debug(dbgCache, "\tcache hit for " + name);
+		}
+
+		if (image != null)
+			image.users++;
+
+		lock.release();
+		return image;
+	}
+
+	/**
+	 * Remove a reference to an image returned by <tt>acquire()</tt>.
+	 *
+	 * @param image the image to release.
+	 */
+	public void release(Image image) {
+		lock.acquire();
+
+		Lib.assertTrue(image.users > 0);
+		image.users--;
+
+		if (image.users == 0 && image.stale)
+			image.discard();
+
+		lock.release();
+	}
+
+	/**
+	 * Drop the specified executable from the cache, because its file has been
+	 * or is about to be changed. Its shared pages are freed once no process is
+	 * using them.
+	 *
+	 * @param name the name of the file.
+	 */
+	public void invalidate(String name) {
+		lock.acquire();
+
+		Image image = images.remove(name);
+		if (image != null) {
+			Lib.debug(dbgCache, "\tinvalidating " + name);
+
+			image.stale = true;
+			if (image.users == 0)
+				image.discard();
+		}
+
+		lock.release();
+	}
+
+	/**
+	 * Free every shared page that no process currently maps. Called by the
+	 * kernel when it runs out of free pages.
+	 *
+	 * @return the number of pages freed.
+	 */
+	public int reclaim() {
+		// the kernel may run out of pages while this cache is loading a page
+		boolean held = lock.isHeldByCurrentThread();
+		if (!held)
+			lock.acquire();
+
+		int numFreed = 0;
+		for (Iterator<Image> i = images.values().iterator(); i.hasNext();)
+			numFreed += i.next().freeSharedPages();
+
+		if (!held)
+			lock.release();
+		return numFreed;
+	}
+
+	private Image load(String name) {
+		FileSystem fileSystem = ThreadedKernel.fileSystem;
+
+		OpenFile executable;
+		if (fileSystem instanceof StubFileSystem)
+			executable = ((StubFileSystem) fileSystem).openMapped(name);
+		else
+			executable = fileSystem.open(name, false);
+
+		if (executable == null) {
+			Lib.debug(dbgCache, "\topen failed");
+			return null;
+		}
+
+		try {
+			return new Image(new Coff(executable));
+		}
+		catch (EOFException e) {
+			executable.close();
+			Lib.debug(dbgCache, "\tcoff load failed");
+			return null;
+		}
+	}
+
+	/**
+	 * A loaded executable: its decoded COFF headers and the physical pages
+	 * holding its read-only sections.
+	 */
+	public class Image {
+		private Image(Coff coff) {
+			this.coff = coff;
+
+			sharedPages = new int[coff.getNumSections()][];
+			for (int s = 0; s < sharedPages.length; s++) {
+				sharedPages[s] = new int[coff.getSection(s).getLength()];
+				Arrays.fill(sharedPages[s], -1);
+			}
+		}
+
+		/**
+		 * Return the executable's COFF loader. The loader belongs to the
+		 * cache, and must not be closed.
+		 *
+		 * @return the COFF loader.
+		 */
+		public Coff getCoff() {
+			return coff;
+		}
+
+		/**
+		 * Map the specified page of a section, returning the physical page
+		 * holding it and loading it into a newly allocated page if it is not
+		 * already resident. The page must be mapped read-only, since it holds
+		 * the section's original contents. Every successful call must be
+		 * matched by a call to <tt>releaseSharedPage()</tt>.
+		 *
+		 * @param s the section number.
+		 * @param spn the page number within the section.
+		 * @return the physical page number, or -1 if no physical page could
+		 * be allocated.
+		 */
+		public int getSharedPage(int s, int spn) {
+			return getSharedPage(s, spn, null);
+		}
+
+		/**
+		 * Map the specified page of a section, as <tt>getSharedPage(s,
+		 * spn)</tt> does, and report whether this call read the page from the
+		 * executable.
+		 *
+		 * @param s the section number.
+		 * @param spn the page number within the section.
+		 * @param loaded if not <tt>null</tt>, <tt>loaded[0]</tt> is set to
+		 * <tt>true</tt> if the page was not resident and was read in, and to
+		 * <tt>false</tt> otherwise.
+		 * @return the physical page number, or -1 if no physical page could
+		 * be allocated.
+		 */
+		public int getSharedPage(int s, int spn, boolean[] loaded) {
+			lock.acquire();
+
+			boolean read = false;
+			int ppn = sharedPages[s][spn];
+			if (ppn == -1) {
+				ppn = UserKernel.allocatePage();
+				if (ppn != -1) {
+					coff.getSection(s).loadPage(spn, ppn);
+					Machine.stats().numCOFFReads++;
+					sharedPages[s][spn] = ppn;
+					read = true;
+				}
+			}
+
+			if (loaded != null)
+				loaded[0] = read;
+
+			if (ppn != -1)
+				UserKernel.referencePage(ppn);
+
+			lock.release();
+			return ppn;
+		}
+
+		/**
+		 * Unmap a page mapped by <tt>getSharedPage()</tt>. The page stays
+		 * resident until it is reclaimed.
+		 *
+		 * @param s the section number.
+		 * @param spn the page number within the section.
+		 */
+		public void releaseSharedPage(int s, int spn) {
+			lock.acquire();
+
+			int ppn = sharedPages[s][spn];
+			Lib.assertTrue(ppn != -1 && UserKernel.getReferenceCount(ppn) > 1);
+			UserKernel.freePage(ppn);
+
+			lock.release();
+		}
+
+		/**
+		 * Take a page mapped by <tt>getSharedPage()</tt> out of the cache, if
+		 * the caller is the only process mapping it, so that the caller can
+		 * write to it instead of copying it. A page that is taken belongs to
+		 * the caller, and is freed with <tt>UserKernel.freePage()</tt> rather
+		 * than released.
+		 *
+		 * @param s the section number.
+		 * @param spn the page number within the section.
+		 * @return <tt>true</tt> if the page was taken.
+		 */
+		public boolean takeSharedPage(int s, int spn) {
+			lock.acquire();
+
+			int ppn = sharedPages[s][spn];
+			Lib.assertTrue(ppn != -1);
+
+			// one reference for the cache and one for the caller
+			boolean taken = (UserKernel.getReferenceCount(ppn) == 2);
+			if (taken) {
+				sharedPages[s][spn] = -1;
+				UserKernel.freePage(ppn);
+			}
+
+			lock.release();
+			return taken;
+		}
+
+		/**
+		 * Test whether the pages of the specified section are shared for as
+		 * long as a process runs, because the section is read-only.
+		 *
+		 * @param s the section number.
+		 * @return <tt>true</tt> if the section's pages are always shared.
+		 */
+		public boolean isShared(int s) {
+			return coff.getSection(s).isReadOnly();
+		}
+
+		private int freeSharedPages() {
+			int numFreed = 0;
+
+			for (int s = 0; s < sharedPages.length; s++) {
+				for (int i = 0; i < sharedPages[s].length; i++) {
+					int ppn = sharedPages[s][i];
+
+					// only the cache's own reference is left
+					if (ppn != -1 && UserKernel.getReferenceCount(ppn) == 1) {
+						UserKernel.freePage(sharedPages[s][i]);
+						sharedPages[s][i] = -1;
+						numFreed++;
+					}
+				}
+			}
+
+			return numFreed;
+		}
+
+		private void discard() {
+			freeSharedPages();
+			coff.close();
+		}
+
+		private Coff coff;
+
+		/**
+		 * The physical page holding each page of each section, or -1 if it is
+		 * not resident.
+		 */
+		private int[][] sharedPages;
+
+		/** The number of processes using this image. */
+		private int users = 0;
+
+		/** Set once this image has been dropped from the cache. */
+		private boolean stale = false;
+	}
+
+	private HashMap<String, Image> images = new HashMap<String, Image>();
+
+	private Lock lock = new Lock();
+
+	private static final char dbgCache = 'a';
+}
@@ -16,14 +16,28 @@ public class UserKernel extends ThreadedKernel {
 	}
 
 	/**
-	 * Initialize this kernel. Creates a synchronized console and sets the
-	 * processor's exception handler.
+	 * Initialize this kernel. Creates a synchronized console, the map of free
+	 * physical pages and the executable cache, and sets the processor's
+	 * exception handler. Processes share the writable pages of their
+	 * executables copy-on-write if the <tt>nachos.conf</tt> key
+	 * <tt>Kernel.copyOnWrite</tt> is <tt>true</tt>.
 	 */
 	public void initialize(String[] args) {
 		super.initialize(args);
 
 		console = new SynchConsole(Machine.console());
 
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		freeMap = new long[(numPhysPages + 63) / 64];
+		freeWords = new long[(freeMap.length + 63) / 64];
+		referenceCounts = new int[numPhysPages];
+		pageLock = new Lock();
+		for (int ppn = 0; ppn < numPhysPages; ppn++)
+			setFree(ppn);
+
+		coffCache = new CoffCache();
+		copyOnWrite = Config.getBoolean("Kernel.copyOnWrite", false);
+
 		Machine.processor().setExceptionHandler(new Runnable() {
 			public void run() {
 				exceptionHandler();
@@ -62,6 +76,159 @@ public class UserKernel extends ThreadedKernel {
 		return ((UThread) KThread.currentThread()).process;
 	}
 
+	/**
+	 * Allocate a free physical page, with a reference count of one. If none
+	 * are free, first reclaims the pages the executable cache is holding for
+	 * programs no longer running. Pages set aside by <tt>reservePages()</tt>
+	 * are not counted as free.
+	 * 
+	 * @return the physical page number, or -1 if no page is free.
+	 */
+	public static int allocatePage() {
+		int ppn = takeFreePage(false);
+
+		if (ppn == -1 && coffCache.reclaim() > 0)
+			ppn = takeFreePage(false);
+
+		return ppn;
+	}
+
+	/**
+	 * Set aside the specified number of free pages, so that later calls to
+	 * <tt>allocateReservedPage()</tt> cannot fail. Used by processes that
+	 * will need pages of their own only when they first write to a shared
+	 * page.
+	 * 
+	 * @param count the number of pages to reserve.
+	 * @return <tt>true</tt> if enough pages were free.
+	 */
+	public static boolean reservePages(int count) {
+		if (reserveFreePages(count))
+			return true;
+
+		return coffCache.reclaim() > 0 && reserveFreePages(count);
+	}
+
+	/**
+	 * Release pages reserved by <tt>reservePages()</tt> and not allocated.
+	 * 
+	 * @param count the number of pages to release.
+	 */
+	public static void unreservePages(int count) {
+		pageLock.acquire();
+		Lib.assertTrue(count <= numReservedPages);
+		numReservedPages -= count;
+		pageLock.release();
+	}
+
+	/**
+	 * Allocate one of the pages reserved by <tt>reservePages()</tt>, with a
+	 * reference count of one.
+	 * 
+	 * @return the physical page number.
+	 */
+	public static int allocateReservedPage() {
+		int ppn = takeFreePage(true);
+		Lib.assertTrue(ppn != -1);
+
+		return ppn;
+	}
+
+	/**
+	 * Add a reference to a page allocated by <tt>allocatePage()</tt>, so that
+	 * it is not freed until a matching call to <tt>freePage()</tt>.
+	 * 
+	 * @param ppn the physical page number.
+	 */
+	public static void referencePage(int ppn) {
+		pageLock.acquire();
+		Lib.assertTrue(referenceCounts[ppn] > 0);
+		referenceCounts[ppn]++;
+		pageLock.release();
+	}
+
+	/**
+	 * Remove a reference to a page allocated by <tt>allocatePage()</tt>,
+	 * returning it to the free map when the last reference is removed.
+	 * 
+	 * @param ppn the physical page number.
+	 */
+	public static void freePage(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < Machine.processor().getNumPhysPages());
+
+		pageLock.acquire();
+		Lib.assertTrue(referenceCounts[ppn] > 0, "page freed twice");
+		if (--referenceCounts[ppn] == 0)
+			setFree(ppn);
+		pageLock.release();
+	}
+
+	/**
+	 * Return the number of references to the specified physical page.
+	 * 
+	 * @param ppn the physical page number.
+	 * @return the reference count, or 0 if the page is free.
+	 */
+	public static int getReferenceCount(int ppn) {
+		return referenceCounts[ppn];
+	}
+
+	/**
+	 * Take the lowest free page, either one that is reserved or one that is
+	 * not. The summary map has a bit for each word of the free map, so a free
+	 * page is found by testing one summary word per 4096 pages rather than
+	 * one word per 64.
+	 */
+	private static int takeFreePage(boolean reserved) {
+		pageLock.acquire();
+
+		if (reserved) {
+			Lib.assertTrue(numReservedPages > 0);
+			numReservedPages--;
+		}
+		else if (numFreePages <= numReservedPages) {
+			pageLock.release();
+			return -1;
+		}
+
+		int ppn = -1;
+		for (int i = 0; i < freeWords.length && ppn == -1; i++) {
+			if (freeWords[i] == 0)
+				continue;
+
+			int word = i * 64 + Long.numberOfTrailingZeros(freeWords[i]);
+			ppn = word * 64 + Long.numberOfTrailingZeros(freeMap[word]);
+
+			freeMap[word] &= ~(1L << ppn);
+			if (freeMap[word] == 0)
+				freeWords[word >> 6] &= ~(1L << word);
+
+			referenceCounts[ppn] = 1;
+			numFreePages--;
+		}
+
+		pageLock.release();
+		return ppn;
+	}
+
+	private static void setFree(int ppn) {
+		int word = ppn >> 6;
+		freeMap[word] |= 1L << ppn;
+		freeWords[word >> 6] |= 1L << word;
+		numFreePages++;
+	}
+
+	private static boolean reserveFreePages(int count) {
+		pageLock.acquire();
+
+		boolean reserved = (numFreePages - numReservedPages >= count);
+		if (reserved)
+			numReservedPages += count;
+
+		pageLock.release();
+		return reserved;
+	}
+
 	/**
 	 * The exception handler. This handler is called by the processor whenever a
 	 * user instruction causes a processor exception.
@@ -122,6 +289,28 @@ public class UserKernel extends ThreadedKernel {
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 
+	/** Globally accessible reference to the executable cache. */
+	public static CoffCache coffCache;
+
+	/** Whether writable executable pages are shared copy-on-write. */
+	public static boolean copyOnWrite;
+
+	/** One bit per physical page, set if the page is free. */
+	private static long[] freeMap;
+
+	/** One bit per word of <tt>freeMap</tt>, set if the word is not zero. */
+	private static long[] freeWords;
+
+	/** The number of references to each physical page. */
+	private static int[] referenceCounts;
+
+	private static int numFreePages = 0;
+
+	/** The number of free pages set aside by <tt>reservePages()</tt>. */
+	private static int numReservedPages = 0;
+
+	private static Lock pageLock;
+
 	// dummy variables to make javac smarter
 	private static Coff dummy1 = null;
 }
@@ -5,7 +5,14 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
-import java.io.EOFException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.CRC32;
 
 /**
  * Encapsulates the state of a user process that is not contained in its user
@@ -24,10 +31,10 @@ public class UserProcess {
 	 * Allocate a new process.
 	 */
 	public UserProcess() {
-		int numPhysPages = Machine.processor().getNumPhysPages();
-		pageTable = new TranslationEntry[numPhysPages];
-		for (int i = 0; i < numPhysPages; i++)
-			pageTable[i] = new TranslationEntry(i, i, true, false, false, false);
+		fileTable[fdStandardInput] = UserKernel.console.openForReading();
+		fileTable[fdStandardOutput] = UserKernel.console.openForWriting();
+
+		pid = nextPID++;
 	}
 
 	/**
@@ -66,6 +73,8 @@ public class UserProcess {
 		if (!load(name, args))
 			return false;
 
+		numRunningProcesses++;
+
 		thread = new UThread(this);
 		thread.setName(name).fork();
 
@@ -147,12 +156,17 @@ public class UserProcess {
 
 		byte[] memory = Machine.processor().getMemory();
 
-		// for now, just assume that virtual addresses equal physical addresses
-		if (vaddr < 0 || vaddr >= memory.length)
-			return 0;
+		int amount = 0;
+		while (amount < length) {
+			int paddr = translateForTransfer(vaddr + amount, false);
+			if (paddr == -1)
+				break;
 
-		int amount = Math.min(length, memory.length - vaddr);
-		System.arraycopy(memory, vaddr, data, offset, amount);
+			int chunk = Math.min(length - amount, pageSize - paddr % pageSize);
+			System.arraycopy(memory, paddr, data, offset + amount, chunk);
+			markTransferred(vaddr + amount, false);
+			amount += chunk;
+		}
 
 		return amount;
 	}
@@ -189,16 +203,147 @@ public class UserProcess {
 
 		byte[] memory = Machine.processor().getMemory();
 
-		// for now, just assume that virtual addresses equal physical addresses
-		if (vaddr < 0 || vaddr >= memory.length)
-			return 0;
+		int amount = 0;
+		while (amount < length) {
+			int paddr = translateForTransfer(vaddr + amount, true);
+			if (paddr == -1)
+				break;
+
+			int chunk = Math.min(length - amount, pageSize - paddr % pageSize);
+			System.arraycopy(data, offset + amount, memory, paddr, chunk);
+			markTransferred(vaddr + amount, true);
+			amount += chunk;
+		}
+
+		return amount;
+	}
+
+	/**
+	 * Read up to <i>length</i> bytes from the current position of the
+	 * specified file directly into this process's virtual memory, without
+	 * staging the data in a temporary buffer. Stops at the first page that is
+	 * not mapped or is read-only, and after any short read from the file.
+	 * 
+	 * @param file the file to read from.
+	 * @param vaddr the first byte of virtual memory to write.
+	 * @param length the number of bytes to transfer.
+	 * @return the number of bytes successfully transferred, or -1 if the file
+	 * reported an error before any bytes were transferred.
+	 */
+	public int readFileToVirtualMemory(OpenFile file, int vaddr, int length) {
+		Lib.assertTrue(length >= 0);
+
+		byte[] memory = Machine.processor().getMemory();
+
+		int amount = 0;
+		while (amount < length) {
+			int paddr = translateForTransfer(vaddr + amount, true);
+			if (paddr == -1)
+				break;
+
+			int chunk = Math.min(length - amount, pageSize - paddr % pageSize);
+			int read = file.read(memory, paddr, chunk);
+			if (read == -1)
+				return (amount > 0) ? amount : -1;
+
+			markTransferred(vaddr + amount, read > 0);
+			amount += read;
+			if (read < chunk)
+				break;
+		}
+
+		return amount;
+	}
+
+	/**
+	 * Write up to <i>length</i> bytes from this process's virtual memory
+	 * directly to the current position of the specified file, without staging
+	 * the data in a temporary buffer. Stops at the first page that is not
+	 * mapped, and after any short write to the file.
+	 * 
+	 * @param file the file to write to.
+	 * @param vaddr the first byte of virtual memory to read.
+	 * @param length the number of bytes to transfer.
+	 * @return the number of bytes successfully transferred, or -1 if the file
+	 * reported an error before any bytes were transferred.
+	 */
+	public int writeFileFromVirtualMemory(OpenFile file, int vaddr, int length) {
+		Lib.assertTrue(length >= 0);
 
-		int amount = Math.min(length, memory.length - vaddr);
-		System.arraycopy(data, offset, memory, vaddr, amount);
+		byte[] memory = Machine.processor().getMemory();
+
+		int amount = 0;
+		while (amount < length) {
+			int paddr = translateForTransfer(vaddr + amount, false);
+			if (paddr == -1)
+				break;
+
+			int chunk = Math.min(length - amount, pageSize - paddr % pageSize);
+			int written = file.write(memory, paddr, chunk);
+			if (written == -1)
+				return (amount > 0) ? amount : -1;
+
+			markTransferred(vaddr + amount, false);
+			amount += written;
+			if (written < chunk)
+				break;
+		}
 
 		return amount;
 	}
 
+	/**
+	 * Translate a virtual address in this process for a kernel-initiated
+	 * transfer, using this process's page table. A copy-on-write page is
+	 * copied first if <i>writing</i>. The page's <tt>used</tt> and
+	 * <tt>dirty</tt> bits are left alone until the transfer has happened; see
+	 * <tt>markTransferred()</tt>. The transfer routines call this once per
+	 * page and copy the rest of the page in one piece.
+	 * 
+	 * @param vaddr the virtual address to translate.
+	 * @param writing <tt>true</tt> if the kernel is about to write the page.
+	 * @return the physical address, or -1 if the page is not mapped, or is
+	 * read-only and <i>writing</i> is <tt>true</tt>.
+	 */
+	protected int translateForTransfer(int vaddr, boolean writing) {
+		if (vaddr < 0)
+			return -1;
+
+		int vpn = Processor.pageFromAddress(vaddr);
+		if (vpn >= pageTable.length)
+			return -1;
+
+		TranslationEntry entry = pageTable[vpn];
+		if (writing && entry != null && entry.valid && entry.readOnly
+				&& isCopyOnWritePage(vpn))
+			copyOnWrite(vpn);
+
+		if (entry == null || !entry.valid || (writing && entry.readOnly))
+			return -1;
+
+		if (entry.ppn < 0 || entry.ppn >= Machine.processor().getNumPhysPages())
+			return -1;
+
+		return entry.ppn * pageSize + Processor.offsetFromAddress(vaddr);
+	}
+
+	/**
+	 * Record a kernel-initiated transfer to or from the page containing the
+	 * specified address, which <tt>translateForTransfer()</tt> has just
+	 * translated. Sets the page's <tt>used</tt> bit, and its <tt>dirty</tt>
+	 * bit if the transfer wrote to it.
+	 * 
+	 * @param vaddr an address in the page.
+	 * @param written <tt>true</tt> if the transfer changed the page.
+	 */
+	protected void markTransferred(int vaddr, boolean written) {
+		TranslationEntry entry = pageTable[Processor.pageFromAddress(vaddr)];
+
+		entry.used = true;
+		if (written)
+			entry.dirty = true;
+	}
+
 	/**
 	 * Load the executable with the specified name into this process, and
 	 * prepare to pass it the specified arguments. Opens the executable, reads
@@ -212,27 +357,39 @@ public class UserProcess {
 	private boolean load(String name, String[] args) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-		if (executable == null) {
-			Lib.debug(dbgProcess, "\topen failed");
-			return false;
-		}
+		// only the process the kernel starts at boot uses the snapshot; the
+		// processes it runs with exec() load normally
+		String snapshotName = null;
+		if (UserKernel.currentProcess() == null)
+			snapshotName = Config.getString("Kernel.bootSnapshot");
+
+		long checksum = 0;
+		if (snapshotName != null) {
+			OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+			if (executable == null) {
+				Lib.debug(dbgProcess, "\topen failed");
+				return false;
+			}
 
-		try {
-			coff = new Coff(executable);
-		}
-		catch (EOFException e) {
+			checksum = checksum(executable);
 			executable.close();
-			Lib.debug(dbgProcess, "\tcoff load failed");
-			return false;
+
+			if (restoreSnapshot(snapshotName, name, args, checksum))
+				return true;
 		}
 
+		image = UserKernel.coffCache.acquire(name);
+		if (image == null)
+			return false;
+
+		coff = image.getCoff();
+
 		// make sure the sections are contiguous and start at page 0
 		numPages = 0;
 		for (int s = 0; s < coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
 			if (section.getFirstVPN() != numPages) {
-				coff.close();
+				releaseImage();
 				Lib.debug(dbgProcess, "\tfragmented executable");
 				return false;
 			}
@@ -248,7 +405,7 @@ public class UserProcess {
 			argsSize += 4 + argv[i].length + 1;
 		}
 		if (argsSize > pageSize) {
-			coff.close();
+			releaseImage();
 			Lib.debug(dbgProcess, "\targuments too long");
 			return false;
 		}
@@ -283,9 +440,147 @@ public class UserProcess {
 			stringOffset += 1;
 		}
 
+		if (snapshotName != null)
+			saveSnapshot(snapshotName, name, args, checksum);
+
 		return true;
 	}
 
+	/**
+	 * Return a checksum of the entire contents of the specified file, read
+	 * with a single call. Every byte counts, so an executable rebuilt with the
+	 * same layout but different code does not match a stale snapshot.
+	 */
+	private static long checksum(OpenFile file) {
+		byte[] contents = new byte[Math.max(file.length(), 0)];
+		int amount = file.read(0, contents, 0, contents.length);
+
+		CRC32 crc = new CRC32();
+		crc.update(contents, 0, Math.max(amount, 0));
+		return crc.getValue() ^ ((long) contents.length << 32);
+	}
+
+	/**
+	 * Try to load this process from the boot snapshot with the specified
+	 * name, instead of from its executable. The snapshot holds the image
+	 * <tt>load()</tt> produced for one program, set of arguments and
+	 * executable checksum, and is only used if all three match.
+	 * 
+	 * @return <tt>true</tt> if the process was restored from the snapshot.
+	 */
+	private boolean restoreSnapshot(String snapshotName, String name,
+			String[] args, long checksum) {
+		OpenFile file = ThreadedKernel.fileSystem.open(snapshotName, false);
+		if (file == null)
+			return false;
+
+		byte[] snapshot = new byte[file.length()];
+		int amount = file.read(0, snapshot, 0, snapshot.length);
+		file.close();
+		if (amount != snapshot.length)
+			return false;
+
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					snapshot));
+
+			if (in.readInt() != snapshotMagic || in.readInt() != pageSize
+					|| !in.readUTF().equals(name)
+					|| in.readInt() != args.length)
+				return false;
+			for (int i = 0; i < args.length; i++) {
+				if (!in.readUTF().equals(args[i]))
+					return false;
+			}
+			if (in.readLong() != checksum)
+				return false;
+
+			numPages = in.readInt();
+			if (!allocatePageTable())
+				return false;
+
+			initialPC = in.readInt();
+			initialSP = in.readInt();
+			argc = in.readInt();
+			argv = in.readInt();
+
+			byte[] page = new byte[pageSize];
+			for (int vpn = 0; vpn < numPages; vpn++) {
+				boolean readOnly = in.readBoolean();
+				boolean zero = in.readBoolean();
+
+				if (zero)
+					Arrays.fill(page, (byte) 0);
+				else
+					in.readFully(page);
+
+				Lib.assertTrue(writeVirtualMemory(vpn * pageSize, page) == pageSize);
+				pageTable[vpn].readOnly = readOnly;
+			}
+		}
+		catch (IOException e) {
+			unloadSections();
+			return false;
+		}
+
+		Lib.debug(dbgProcess, "\trestored from " + snapshotName);
+		return true;
+	}
+
+	/**
+	 * Write the image <tt>load()</tt> just produced to the boot snapshot with
+	 * the specified name. All-zero pages, such as the stack, are stored as a
+	 * flag only.
+	 */
+	private void saveSnapshot(String snapshotName, String name,
+			String[] args, long checksum) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		try {
+			out.writeInt(snapshotMagic);
+			out.writeInt(pageSize);
+			out.writeUTF(name);
+			out.writeInt(args.length);
+			for (int i = 0; i < args.length; i++)
+				out.writeUTF(args[i]);
+			out.writeLong(checksum);
+
+			out.writeInt(numPages);
+			out.writeInt(initialPC);
+			out.writeInt(initialSP);
+			out.writeInt(argc);
+			out.writeInt(argv);
+
+			byte[] page = new byte[pageSize];
+			for (int vpn = 0; vpn < numPages; vpn++) {
+				if (readVirtualMemory(vpn * pageSize, page) != pageSize)
+					return;
+
+				boolean zero = true;
+				for (int i = 0; i < pageSize && zero; i++)
+					zero = (page[i] == 0);
+
+				out.writeBoolean(pageTable[vpn].readOnly);
+				out.writeBoolean(zero);
+				if (!zero)
+					out.write(page);
+			}
+			out.flush();
+		}
+		catch (IOException e) {
+			return;
+		}
+
+		OpenFile file = ThreadedKernel.fileSystem.open(snapshotName, true);
+		if (file == null)
+			return;
+
+		byte[] snapshot = bytes.toByteArray();
+		file.write(0, snapshot, 0, snapshot.length);
+		file.close();
+	}
+
 	/**
 	 * Allocates memory for this process, and loads the COFF sections into
 	 * memory. If this returns successfully, the process will definitely be run
@@ -294,13 +589,10 @@ public class UserProcess {
 	 * @return <tt>true</tt> if the sections were successfully loaded.
 	 */
 	protected boolean loadSections() {
-		if (numPages > Machine.processor().getNumPhysPages()) {
-			coff.close();
-			Lib.debug(dbgProcess, "\tinsufficient physical memory");
-			return false;
-		}
+		pageTable = new TranslationEntry[numPages];
 
-		// load sections
+		// load sections, mapping read-only pages shared through the cache, and
+		// writable pages too if they are copied on write
 		for (int s = 0; s < coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
 
@@ -310,11 +602,55 @@ public class UserProcess {
 			for (int i = 0; i < section.getLength(); i++) {
 				int vpn = section.getFirstVPN() + i;
 
-				// for now, just assume virtual addresses=physical addresses
-				section.loadPage(i, vpn);
+				boolean shared = image.isShared(s) || UserKernel.copyOnWrite;
+
+				int ppn;
+				if (shared) {
+					ppn = image.getSharedPage(s, i);
+
+					// another process maps the page, so one of the two will
+					// need a page for its copy
+					if (ppn != -1 && !image.isShared(s)
+							&& UserKernel.getReferenceCount(ppn) > 2
+							&& !UserKernel.reservePages(1)) {
+						image.releaseSharedPage(s, i);
+						ppn = -1;
+					}
+				}
+				else {
+					ppn = UserKernel.allocatePage();
+					if (ppn != -1) {
+						section.loadPage(i, ppn);
+						Machine.stats().numCOFFReads++;
+					}
+				}
+
+				if (ppn == -1) {
+					unloadSections();
+					Lib.debug(dbgProcess, "\tinsufficient physical memory");
+					return false;
+				}
+
+				pageTable[vpn] = new TranslationEntry(vpn, ppn, true, shared,
+						false, false);
 			}
 		}
 
+		// the stack and argument pages start out zeroed
+		byte[] memory = Machine.processor().getMemory();
+		for (int vpn = numPages - stackPages - 1; vpn < numPages; vpn++) {
+			int ppn = UserKernel.allocatePage();
+			if (ppn == -1) {
+				unloadSections();
+				Lib.debug(dbgProcess, "\tinsufficient physical memory");
+				return false;
+			}
+
+			Arrays.fill(memory, ppn * pageSize, (ppn + 1) * pageSize, (byte) 0);
+			pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, false,
+					false);
+		}
+
 		return true;
 	}
 
@@ -322,6 +658,164 @@ public class UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
+		if (pageTable != null) {
+			for (int vpn = 0; vpn < pageTable.length; vpn++) {
+				if (pageTable[vpn] == null || !pageTable[vpn].valid)
+					continue;
+
+				if (isSharedPage(vpn))
+					releaseSharedPage(vpn);
+				else
+					UserKernel.freePage(pageTable[vpn].ppn);
+			}
+
+			pageTable = null;
+		}
+
+		releaseImage();
+	}
+
+	/**
+	 * Test whether the specified page is mapped to one of the executable
+	 * cache's shared pages, rather than to a page owned by this process.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return <tt>true</tt> if the page is shared.
+	 */
+	protected boolean isSharedPage(int vpn) {
+		return image != null && pageTable[vpn].readOnly;
+	}
+
+	/**
+	 * Test whether the specified page is a shared copy of a writable
+	 * section's page, which this process must copy before writing to it.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return <tt>true</tt> if the page is copy-on-write.
+	 */
+	protected boolean isCopyOnWritePage(int vpn) {
+		if (!isSharedPage(vpn))
+			return false;
+
+		int s = findSection(vpn);
+		return s != -1 && !image.isShared(s);
+	}
+
+	/**
+	 * Unmap the specified shared page, returning it to the executable cache.
+	 * If the page is copy-on-write and still mapped by another process, the
+	 * page reserved for its copy is no longer needed.
+	 * 
+	 * @param vpn the virtual page number.
+	 */
+	protected void releaseSharedPage(int vpn) {
+		if (isCopyOnWritePage(vpn) && reservesCopyPages()
+				&& UserKernel.getReferenceCount(pageTable[vpn].ppn) > 2)
+			UserKernel.unreservePages(1);
+
+		int s = findSection(vpn);
+		image.releaseSharedPage(s, vpn - coff.getSection(s).getFirstVPN());
+	}
+
+	/**
+	 * Test whether this process reserves a free page for each copy-on-write
+	 * page it shares with another process, so that copying a page on write
+	 * never fails. The reservations made by all the processes mapping a page
+	 * add up to one less than the number of mappings, since the last process
+	 * to write takes the shared page instead of copying it.
+	 * 
+	 * @return <tt>true</tt> if copies are reserved.
+	 */
+	protected boolean reservesCopyPages() {
+		return true;
+	}
+
+	/**
+	 * Return the number of the COFF section containing the specified page.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return the section number, or -1 if the page is not in a section.
+	 */
+	protected int findSection(int vpn) {
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			int spn = vpn - section.getFirstVPN();
+
+			if (spn >= 0 && spn < section.getLength())
+				return s;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Give this process a private, writable copy of the specified
+	 * copy-on-write page. Called when the process or a kernel transfer first
+	 * writes to the page. If no other process maps the page, the process
+	 * takes the shared page from the executable cache; otherwise the copy
+	 * uses a page reserved when the page was mapped.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return <tt>true</tt> if the page was copied or taken.
+	 */
+	protected boolean copyOnWrite(int vpn) {
+		Lib.assertTrue(isCopyOnWritePage(vpn));
+
+		int s = findSection(vpn);
+		int spn = vpn - coff.getSection(s).getFirstVPN();
+		TranslationEntry entry = pageTable[vpn];
+
+		if (!image.takeSharedPage(s, spn)) {
+			int ppn = UserKernel.allocateReservedPage();
+
+			byte[] memory = Machine.processor().getMemory();
+			System.arraycopy(memory, entry.ppn * pageSize, memory, ppn
+					* pageSize, pageSize);
+
+			image.releaseSharedPage(s, spn);
+			entry.ppn = ppn;
+		}
+
+		entry.readOnly = false;
+		entry.dirty = true;
+
+		Lib.debug(dbgProcess, "\tcopied vpn " + vpn + " on write");
+		return true;
+	}
+
+	/**
+	 * Allocate a page table of <tt>numPages</tt> pages, with each page mapped
+	 * to a newly allocated physical page, for a process that is not loaded
+	 * from its executable.
+	 * 
+	 * @return <tt>true</tt> if enough physical pages were available.
+	 */
+	protected boolean allocatePageTable() {
+		pageTable = new TranslationEntry[numPages];
+
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			int ppn = UserKernel.allocatePage();
+			if (ppn == -1) {
+				unloadSections();
+				return false;
+			}
+
+			pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, false,
+					false);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Return this process's executable to the executable cache.
+	 */
+	private void releaseImage() {
+		if (image != null) {
+			UserKernel.coffCache.release(image);
+			image = null;
+			coff = null;
+		}
 	}
 
 	/**
@@ -368,16 +862,246 @@ public class UserProcess {
 		// can grade your implementation.
 
 		Lib.debug(dbgProcess, "UserProcess.handleExit (" + status + ")");
-		// for now, unconditionally terminate with just one process
-		Kernel.kernel.terminate();
+		exit(status);
+
+		Lib.assertNotReached();
+		return 0;
+	}
+
+	/**
+	 * Release this process's resources, wake its parent if it is waiting in
+	 * join(), and finish its thread. The last process to exit terminates the
+	 * kernel.
+	 * 
+	 * @param status the exit status, or <tt>null</tt> if the process is
+	 * being killed because of an unhandled exception.
+	 */
+	private void exit(Integer status) {
+		closeFiles();
+		unloadSections();
+		children.clear();
+
+		exitStatus = status;
+		exited.V();
+
+		// nothing here blocks, so no other process can exit in between
+		if (--numRunningProcesses == 0)
+			Kernel.kernel.terminate();
+
+		KThread.finish();
+	}
+
+	/**
+	 * Handle the exec() system call. The new process is a child of this one,
+	 * and runs the named executable, which must end in <tt>.coff</tt>.
+	 */
+	private int handleExec(int nameAddr, int argc, int argvAddr) {
+		String name = readVirtualMemoryString(nameAddr, maxFileNameLength);
+		if (name == null || !name.endsWith(".coff") || argc < 0)
+			return -1;
+
+		String[] args = new String[argc];
+		byte[] pointer = new byte[4];
+		for (int i = 0; i < argc; i++) {
+			if (readVirtualMemory(argvAddr + i * 4, pointer) != 4)
+				return -1;
+
+			args[i] = readVirtualMemoryString(Lib.bytesToInt(pointer, 0),
+					maxFileNameLength);
+			if (args[i] == null)
+				return -1;
+		}
+
+		UserProcess child = newUserProcess();
+		if (!child.execute(name, args)) {
+			child.closeFiles();
+			return -1;
+		}
+
+		children.put(child.pid, child);
+		return child.pid;
+	}
+
+	/**
+	 * Handle the join() system call. Waits for the specified child to exit,
+	 * and stores its exit status. A child can be joined only once.
+	 */
+	private int handleJoin(int pid, int statusAddr) {
+		UserProcess child = children.remove(pid);
+		if (child == null)
+			return -1;
+
+		child.exited.P();
+
+		if (child.exitStatus == null)
+			return 0;
+
+		writeVirtualMemory(statusAddr, Lib.bytesFromInt(child.exitStatus));
+		return 1;
+	}
+
+	private void closeFiles() {
+		for (int fd = 0; fd < maxFileDescriptors; fd++) {
+			if (fileTable[fd] != null) {
+				fileTable[fd].close();
+				fileTable[fd] = null;
+			}
+		}
+	}
+
+	/**
+	 * Handle the creat() and open() system calls.
+	 */
+	private int handleOpen(int nameAddr, boolean create) {
+		String name = readVirtualMemoryString(nameAddr, maxFileNameLength);
+		if (name == null)
+			return -1;
+
+		int fd = 0;
+		while (fd < maxFileDescriptors && fileTable[fd] != null)
+			fd++;
+		if (fd == maxFileDescriptors)
+			return -1;
+
+		// creat() truncates an existing file
+		if (create)
+			UserKernel.coffCache.invalidate(name);
+
+		OpenFile file = ThreadedKernel.fileSystem.open(name, create);
+		if (file == null)
+			return -1;
+
+		fileTable[fd] = file;
+		return fd;
+	}
+
+	/**
+	 * Handle the read() system call. Data is read from the file straight into
+	 * physical memory, one page at a time.
+	 */
+	private int handleRead(int fd, int bufferAddr, int count) {
+		OpenFile file = getOpenFile(fd);
+		if (file == null || isMapped(fd) || count < 0
+				|| !isValidTransfer(bufferAddr, count, true))
+			return -1;
 
+		return readFileToVirtualMemory(file, bufferAddr, count);
+	}
+
+	/**
+	 * Handle the write() system call. Data is written to the file straight
+	 * from physical memory, one page at a time.
+	 */
+	private int handleWrite(int fd, int bufferAddr, int count) {
+		OpenFile file = getOpenFile(fd);
+		if (file == null || isMapped(fd) || count < 0
+				|| !isValidTransfer(bufferAddr, count, false))
+			return -1;
+
+		if (file.getFileSystem() != null)
+			UserKernel.coffCache.invalidate(file.getName());
+
+		return writeFileFromVirtualMemory(file, bufferAddr, count);
+	}
+
+	/**
+	 * Handle the close() system call. Closing a file that is mapped into
+	 * memory removes the mapping.
+	 */
+	private int handleClose(int fd) {
+		OpenFile file = getOpenFile(fd);
+		if (file == null)
+			return -1;
+
+		if (isMapped(fd))
+			unmap(fd);
+
+		fileTable[fd] = null;
+		file.close();
 		return 0;
 	}
 
+	/**
+	 * Handle the mmap() system call. Mapping a file needs demand paging, so
+	 * this kernel does not support it.
+	 * 
+	 * @param fd the file descriptor of the file to map.
+	 * @param address the page-aligned virtual address to map the file at.
+	 * @return the length of the file, or -1 if it could not be mapped.
+	 */
+	protected int handleMmap(int fd, int address) {
+		return -1;
+	}
+
+	/**
+	 * Test whether the specified file descriptor is mapped into memory by
+	 * mmap(), in which case read() and write() on it fail until it is closed.
+	 * 
+	 * @param fd the file descriptor.
+	 * @return <tt>true</tt> if the file is mapped.
+	 */
+	protected boolean isMapped(int fd) {
+		return false;
+	}
+
+	/**
+	 * Remove the mapping of the specified file descriptor, writing back its
+	 * dirty pages. Called when the descriptor is closed.
+	 * 
+	 * @param fd the mapped file descriptor.
+	 */
+	protected void unmap(int fd) {
+	}
+
+	/**
+	 * Handle the unlink() system call.
+	 */
+	private int handleUnlink(int nameAddr) {
+		String name = readVirtualMemoryString(nameAddr, maxFileNameLength);
+		if (name == null)
+			return -1;
+
+		UserKernel.coffCache.invalidate(name);
+		return ThreadedKernel.fileSystem.remove(name) ? 0 : -1;
+	}
+
+	/**
+	 * Return the file open as the specified file descriptor, or <tt>null</tt>
+	 * if the descriptor is out of range or not open.
+	 */
+	protected OpenFile getOpenFile(int fd) {
+		if (fd < 0 || fd >= maxFileDescriptors)
+			return null;
+
+		return fileTable[fd];
+	}
+
+	/**
+	 * Test whether every page of the specified range of virtual memory can be
+	 * transferred, so that read() and write() fail cleanly instead of moving
+	 * part of a buffer that runs into an invalid page.
+	 */
+	private boolean isValidTransfer(int vaddr, int length, boolean writing) {
+		if (length == 0)
+			return true;
+
+		int lastVaddr = vaddr + length - 1;
+		if (vaddr < 0 || lastVaddr < vaddr)
+			return false;
+
+		for (int vpn = Processor.pageFromAddress(vaddr); vpn <= Processor
+				.pageFromAddress(lastVaddr); vpn++) {
+			if (translateForTransfer(vpn * pageSize, writing) == -1)
+				return false;
+		}
+
+		return true;
+	}
+
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallMmap = 10;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -431,6 +1155,10 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>10</td>
+	 * <td><tt>int  mmap(int fd, char *address);</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
 	 * @param syscall the syscall number.
@@ -446,6 +1174,24 @@ public class UserProcess {
 			return handleHalt();
 		case syscallExit:
 			return handleExit(a0);
+		case syscallExec:
+			return handleExec(a0, a1, a2);
+		case syscallJoin:
+			return handleJoin(a0, a1);
+		case syscallCreate:
+			return handleOpen(a0, true);
+		case syscallOpen:
+			return handleOpen(a0, false);
+		case syscallRead:
+			return handleRead(a0, a1, a2);
+		case syscallWrite:
+			return handleWrite(a0, a1, a2);
+		case syscallClose:
+			return handleClose(a0);
+		case syscallUnlink:
+			return handleUnlink(a0);
+		case syscallMmap:
+			return handleMmap(a0, a1);
 
 		default:
 			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -475,16 +1221,40 @@ public class UserProcess {
 			processor.advancePC();
 			break;
 
+		case Processor.exceptionReadOnly:
+			int vpn = Processor.pageFromAddress(processor
+					.readRegister(Processor.regBadVAddr));
+			if (vpn < pageTable.length && isCopyOnWritePage(vpn)
+					&& copyOnWrite(vpn))
+				break;
+
+			// not a copy-on-write page, so the program is at fault
+			killProcess(cause);
+			break;
+
 		default:
-			Lib.debug(dbgProcess, "Unexpected exception: "
-					+ Processor.exceptionNames[cause]);
-			Lib.assertNotReached("Unexpected exception");
+			killProcess(cause);
+			break;
 		}
 	}
 
+	/**
+	 * Terminate this process because of an exception it did not handle.
+	 * 
+	 * @param cause the exception.
+	 */
+	protected void killProcess(int cause) {
+		Lib.debug(dbgProcess, "Unexpected exception: "
+				+ Processor.exceptionNames[cause]);
+		exit(null);
+	}
+
 	/** The program being run by this process. */
 	protected Coff coff;
 
+	/** The executable cache's image of the program being run. */
+	protected CoffCache.Image image;
+
 	/** This process's page table. */
 	protected TranslationEntry[] pageTable;
 
@@ -496,6 +1266,32 @@ public class UserProcess {
 
 	/** The thread that executes the user-level program. */
         protected UThread thread;
+
+	/** This process's identifier, returned to its parent by exec(). */
+	protected int pid;
+
+	/** The children this process has created and not yet joined. */
+	private HashMap<Integer, UserProcess> children = new HashMap<Integer, UserProcess>();
+
+	/** Released when this process exits. */
+	private Semaphore exited = new Semaphore(0);
+
+	/** The exit status, or <tt>null</tt> if this process was killed. */
+	private Integer exitStatus = null;
+
+	private static int nextPID = 0;
+
+	private static int numRunningProcesses = 0;
+
+	/** The files this process has open, indexed by file descriptor. */
+	protected OpenFile[] fileTable = new OpenFile[maxFileDescriptors];
+
+	/** The number of file descriptors available to each process. */
+	protected static final int maxFileDescriptors = 16;
+
+	private static final int fdStandardInput = 0, fdStandardOutput = 1;
+
+	private static final int maxFileNameLength = 256;
     
 	private int initialPC, initialSP;
 
@@ -503,5 +1299,7 @@ public class UserProcess {
 
 	private static final int pageSize = Processor.pageSize;
 
+	private static final int snapshotMagic = 0x4e534e50;
+
 	private static final char dbgProcess = 'a';
 }
@@ -0,0 +1,193 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.vm.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Adaptive replacement (ARC). Resident pages are split between a list of
+ * pages referenced once recently and a list of pages referenced more than
+ * once, each in LRU order, and the identities of pages recently evicted from
+ * each list are remembered in a ghost list. A fault on a page in a ghost list
+ * shows that its list was too short, and moves the target size of the recent
+ * list towards it; victims are taken from whichever list is over its target.
+ *
+ * <p>
+ * The kernel sees no hits, only reference bits, so hits are collected when a
+ * victim is chosen, as in CAR: a page in the recent list that has been
+ * referenced since the access that loaded it moves to the frequent list, and
+ * a referenced page in the frequent list moves to its MRU end. Only private
+ * pages are remembered in the ghost lists, since a shared page has no single
+ * owner to identify it by.
+ */
+public class ARCPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new ARC policy.
+	 */
+	public ARCPolicy() {
+		capacity = Machine.processor().getNumPhysPages();
+		touched = new boolean[capacity];
+	}
+
+	public void pageLoaded(int ppn) {
+		Object key = VMKernel.pageKey(ppn);
+		touched[ppn] = false;
+
+		if (key != null && recentGhosts.contains(key)) {
+			target = Math.min(capacity, target
+					+ Math.max(1, frequentGhosts.size() / recentGhosts.size()));
+			recentGhosts.remove(key);
+			frequent.add(ppn);
+		}
+		else if (key != null && frequentGhosts.contains(key)) {
+			target = Math.max(0, target
+					- Math.max(1, recentGhosts.size() / frequentGhosts.size()));
+			frequentGhosts.remove(key);
+			frequent.add(ppn);
+		}
+		else {
+			recent.add(ppn);
+			trimGhosts();
+		}
+	}
+
+	public void pageRemoved(int ppn) {
+		boolean wasRecent = recent.remove(ppn);
+		if (!wasRecent)
+			frequent.remove(ppn);
+
+		// pages removed because their owner exited are not remembered
+		if (ppn == victim) {
+			if (victimKey != null) {
+				if (wasRecent)
+					recentGhosts.add(victimKey);
+				else
+					frequentGhosts.add(victimKey);
+			}
+
+			victim = -1;
+			victimKey = null;
+			trimGhosts();
+		}
+	}
+
+	public int chooseVictim() {
+		collectHits();
+
+		LinkedHashSet<Integer> preferred, other;
+		if (recent.size() >= Math.max(1, target)) {
+			preferred = recent;
+			other = frequent;
+		}
+		else {
+			preferred = frequent;
+			other = recent;
+		}
+
+		victim = findUnpinned(preferred);
+		if (victim == -1)
+			victim = findUnpinned(other);
+
+		victimKey = (victim == -1) ? null : VMKernel.pageKey(victim);
+		return victim;
+	}
+
+	/**
+	 * Move the pages referenced since the last call to the MRU end of the
+	 * frequent list, clearing their reference bits.
+	 */
+	private void collectHits() {
+		ArrayList<Integer> hits = new ArrayList<Integer>();
+
+		for (Iterator<Integer> i = recent.iterator(); i.hasNext();) {
+			int ppn = i.next();
+			if (!VMKernel.isUsed(ppn))
+				continue;
+
+			VMKernel.clearUsed(ppn);
+
+			// the first reference is the access that faulted the page in
+			if (touched[ppn]) {
+				i.remove();
+				hits.add(ppn);
+			}
+			else {
+				touched[ppn] = true;
+			}
+		}
+
+		for (Iterator<Integer> i = frequent.iterator(); i.hasNext();) {
+			int ppn = i.next();
+			if (VMKernel.isUsed(ppn)) {
+				VMKernel.clearUsed(ppn);
+				i.remove();
+				hits.add(ppn);
+			}
+		}
+
+		frequent.addAll(hits);
+	}
+
+	private int findUnpinned(LinkedHashSet<Integer> list) {
+		for (int ppn : list) {
+			if (!VMKernel.isPinned(ppn))
+				return ppn;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Keep the recent list and its ghosts within the capacity of memory, and
+	 * all four lists within twice that.
+	 */
+	private void trimGhosts() {
+		while (recent.size() + recentGhosts.size() > capacity
+				&& !recentGhosts.isEmpty())
+			removeFirst(recentGhosts);
+
+		while (recent.size() + recentGhosts.size() + frequent.size()
+				+ frequentGhosts.size() > 2 * capacity
+				&& !frequentGhosts.isEmpty())
+			removeFirst(frequentGhosts);
+	}
+
+	private static void removeFirst(LinkedHashSet<Object> list) {
+		Iterator<Object> i = list.iterator();
+		i.next();
+		i.remove();
+	}
+
+	/** The number of physical pages. */
+	private int capacity;
+
+	/** The target size of the recent list. */
+	private int target = 0;
+
+	/** Resident pages referenced once, in LRU order. */
+	private LinkedHashSet<Integer> recent = new LinkedHashSet<Integer>();
+
+	/** Resident pages referenced more than once, in LRU order. */
+	private LinkedHashSet<Integer> frequent = new LinkedHashSet<Integer>();
+
+	/** The pages most recently evicted from the recent list. */
+	private LinkedHashSet<Object> recentGhosts = new LinkedHashSet<Object>();
+
+	/** The pages most recently evicted from the frequent list. */
+	private LinkedHashSet<Object> frequentGhosts = new LinkedHashSet<Object>();
+
+	/**
+	 * Set for each page in the recent list once the access that loaded it
+	 * has been seen.
+	 */
+	private boolean[] touched;
+
+	/** The page returned by the last call to <tt>chooseVictim()</tt>. */
+	private int victim = -1;
+
+	/** The identity of that page, to remember once it is evicted. */
+	private Object victimKey = null;
+}
@@ -0,0 +1,74 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.vm.*;
+
+/**
+ * An approximation of LRU with aging counters. Each resident page has a
+ * 32-bit counter; on every eviction, each counter is shifted right and the
+ * page's reference bit is shifted into the top, then cleared. The page with
+ * the smallest counter, the one referenced least recently, is evicted, with
+ * clean pages preferred among equals.
+ *
+ * <p>
+ * Counters age once per eviction rather than once per clock tick, so a
+ * process that stops faulting does not lose its history.
+ */
+public class AgingPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new aging policy.
+	 */
+	public AgingPolicy() {
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		resident = new boolean[numPhysPages];
+		ages = new int[numPhysPages];
+	}
+
+	public void pageLoaded(int ppn) {
+		resident[ppn] = true;
+		// a page is loaded because it is about to be referenced
+		ages[ppn] = referenced;
+	}
+
+	public void pageRemoved(int ppn) {
+		resident[ppn] = false;
+	}
+
+	public int chooseVictim() {
+		int victim = -1;
+
+		for (int ppn = 0; ppn < resident.length; ppn++) {
+			if (!resident[ppn])
+				continue;
+
+			ages[ppn] >>>= 1;
+			if (VMKernel.isUsed(ppn)) {
+				VMKernel.clearUsed(ppn);
+				ages[ppn] |= referenced;
+			}
+
+			if (VMKernel.isPinned(ppn))
+				continue;
+
+			if (victim == -1 || isOlder(ppn, victim))
+				victim = ppn;
+		}
+
+		return victim;
+	}
+
+	private boolean isOlder(int ppn, int victim) {
+		int compare = Integer.compareUnsigned(ages[ppn], ages[victim]);
+		if (compare != 0)
+			return compare < 0;
+
+		return !VMKernel.isDirty(ppn) && VMKernel.isDirty(victim);
+	}
+
+	private boolean[] resident;
+
+	/** The aging counter of each resident page. */
+	private int[] ages;
+
+	private static final int referenced = 1 << 31;
+}
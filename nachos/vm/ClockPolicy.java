@@ -0,0 +1,50 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.vm.*;
+
+/**
+ * A second-chance clock over physical memory. The hand sweeps the resident
+ * pages, clearing the reference bit of each page that has one and evicting
+ * the first page that does not.
+ */
+public class ClockPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new clock policy.
+	 */
+	public ClockPolicy() {
+		resident = new boolean[Machine.processor().getNumPhysPages()];
+	}
+
+	public void pageLoaded(int ppn) {
+		resident[ppn] = true;
+	}
+
+	public void pageRemoved(int ppn) {
+		resident[ppn] = false;
+	}
+
+	public int chooseVictim() {
+		// the first sweep clears every reference bit, so two always suffice
+		for (int i = 0; i < 2 * resident.length; i++) {
+			int ppn = hand;
+			hand = (hand + 1) % resident.length;
+
+			if (!resident[ppn] || VMKernel.isPinned(ppn))
+				continue;
+
+			if (VMKernel.isUsed(ppn)) {
+				VMKernel.clearUsed(ppn);
+				continue;
+			}
+
+			return ppn;
+		}
+
+		return -1;
+	}
+
+	private boolean[] resident;
+
+	private int hand = 0;
+}
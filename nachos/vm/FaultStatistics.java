@@ -0,0 +1,169 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.Iterator;
+import java.util.TreeMap;
+
+/**
+ * The latencies of the page faults handled by a <tt>VMKernel</tt>, split by
+ * how each fault was served and by process.
+ *
+ * <p>
+ * A fault's latency is the number of simulated ticks from the exception to
+ * the return to the faulting instruction, including any time spent waiting
+ * for <tt>VMKernel.vmLock</tt> or for the file system while other threads
+ * ran. The report is printed with the machine's statistics when it halts,
+ * through <tt>Stats.faultLatencies</tt>.
+ */
+public class FaultStatistics {
+	/**
+	 * Allocate a new, empty set of fault statistics.
+	 */
+	public FaultStatistics() {
+		for (int type = 0; type < numTypes; type++)
+			totals[type] = new LatencyHistogram();
+	}
+
+	/**
+	 * Record the latency of a fault.
+	 *
+	 * @param pid the identifier of the faulting process.
+	 * @param type how the fault was served, one of the <tt>faultZZZ</tt>
+	 * constants.
+	 * @param ticks the latency, in simulated ticks.
+	 */
+	public void record(int pid, int type, long ticks) {
+		LatencyHistogram[] histograms = processes.get(pid);
+		if (histograms == null) {
+			histograms = new LatencyHistogram[numTypes];
+			processes.put(pid, histograms);
+		}
+
+		if (histograms[type] == null)
+			histograms[type] = new LatencyHistogram();
+
+		histograms[type].record(ticks);
+		totals[type].record(ticks);
+	}
+
+	/**
+	 * Return the report printed with the machine's statistics: the count,
+	 * mean, percentiles and maximum latency of each type of fault, for all
+	 * processes and then for each process.
+	 *
+	 * @return the report, one line per fault type.
+	 */
+	public String toString() {
+		StringBuffer report = new StringBuffer();
+
+		report.append("Fault latency (ticks): count, mean, p50, p90, p99, max\n");
+		appendLines(report, "all", totals);
+
+		for (Iterator<Integer> i = processes.keySet().iterator(); i.hasNext();) {
+			int pid = i.next();
+			appendLines(report, "pid " + pid, processes.get(pid));
+		}
+
+		return report.toString();
+	}
+
+	private void appendLines(StringBuffer report, String who,
+			LatencyHistogram[] histograms) {
+		for (int type = 0; type < numTypes; type++) {
+			LatencyHistogram histogram = histograms[type];
+			if (histogram == null || histogram.getCount() == 0)
+				continue;
+
+			report.append("\t" + who + ", " + typeNames[type] + ": "
+					+ histogram.getCount() + ", " + histogram.getMean() + ", "
+					+ histogram.getPercentile(50) + ", "
+					+ histogram.getPercentile(90) + ", "
+					+ histogram.getPercentile(99) + ", "
+					+ histogram.getMax() + "\n");
+		}
+	}
+
+	/**
+	 * Write every non-empty bucket of every histogram to the specified file,
+	 * as comma-separated values with a header line. The <tt>pid</tt> column
+	 * is <tt>all</tt> for the totals over every process.
+	 *
+	 * @param file the file to write.
+	 */
+	public void writeCSV(OpenFile file) {
+		StringBuffer csv = new StringBuffer("pid,type,low,high,count\n");
+
+		appendRows(csv, "all", totals);
+		for (Iterator<Integer> i = processes.keySet().iterator(); i.hasNext();) {
+			int pid = i.next();
+			appendRows(csv, "" + pid, processes.get(pid));
+		}
+
+		byte[] bytes = csv.toString().getBytes();
+		file.write(0, bytes, 0, bytes.length);
+	}
+
+	private void appendRows(StringBuffer csv, String who,
+			LatencyHistogram[] histograms) {
+		for (int type = 0; type < numTypes; type++) {
+			LatencyHistogram histogram = histograms[type];
+			if (histogram == null)
+				continue;
+
+			for (int i = 0; i < histogram.getNumBuckets(); i++) {
+				if (histogram.getBucketCount(i) == 0)
+					continue;
+
+				// the last bucket has no finite upper bound
+				long high = (i + 1 < histogram.getNumBuckets()) ? LatencyHistogram
+						.bucketLowerBound(i + 1) - 1 : Long.MAX_VALUE;
+
+				csv.append(who + "," + typeNames[type] + ","
+						+ LatencyHistogram.bucketLowerBound(i) + "," + high
+						+ "," + histogram.getBucketCount(i) + "\n");
+			}
+		}
+	}
+
+	/** A TLB miss on a resident page, refilled from the page table. */
+	public static final int faultTLBRefill = 0;
+
+	/** A fault on a stack or argument page, served by zero-filling it. */
+	public static final int faultZeroFill = 1;
+
+	/**
+	 * A fault on a page another process already has resident, in the
+	 * executable cache or in a mapped file, served without any I/O.
+	 */
+	public static final int faultShared = 2;
+
+	/** A fault served by reading the page from its COFF section. */
+	public static final int faultCOFF = 3;
+
+	/** A fault served by reading the page back from the swap file. */
+	public static final int faultSwap = 4;
+
+	/** A fault served by reading the page from a memory-mapped file. */
+	public static final int faultMappedFile = 5;
+
+	/** A write to a copy-on-write page, served by copying or taking it. */
+	public static final int faultCopyOnWrite = 6;
+
+	private static final int numTypes = 7;
+
+	private static final String[] typeNames = { "TLB refill", "zero-fill",
+			"shared", "COFF", "swap", "mapped file", "copy-on-write" };
+
+	/** The histograms for every process together, by fault type. */
+	private LatencyHistogram[] totals = new LatencyHistogram[numTypes];
+
+	/**
+	 * The histograms for each process, by fault type; <tt>null</tt> for
+	 * types the process has not had.
+	 */
+	private TreeMap<Integer, LatencyHistogram[]> processes = new TreeMap<Integer, LatencyHistogram[]>();
+}
@@ -0,0 +1,147 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A histogram of latencies, in the style of an HDR histogram: each power-of-two
+ * range of values is divided into the same number of equal-width buckets, so
+ * every value is recorded to within a fixed relative error (12.5%) however
+ * large it is, in a fixed number of buckets.
+ */
+public class LatencyHistogram {
+	/**
+	 * Allocate a new, empty histogram.
+	 */
+	public LatencyHistogram() {
+	}
+
+	/**
+	 * Record a value.
+	 *
+	 * @param value the value, which must not be negative.
+	 */
+	public void record(long value) {
+		Lib.assertTrue(value >= 0);
+
+		counts[bucketIndex(value)]++;
+		count++;
+		total += value;
+		max = Math.max(max, value);
+	}
+
+	/**
+	 * Return the number of values recorded.
+	 *
+	 * @return the number of values.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Return the mean of the values recorded.
+	 *
+	 * @return the mean, or 0 if no values have been recorded.
+	 */
+	public long getMean() {
+		return (count == 0) ? 0 : total / count;
+	}
+
+	/**
+	 * Return the largest value recorded.
+	 *
+	 * @return the largest value, or 0 if no values have been recorded.
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Return an upper bound on the specified percentile of the values
+	 * recorded: the largest value in the bucket holding the percentile, or
+	 * the largest value recorded if that is smaller.
+	 *
+	 * @param percentile the percentile, between 0 and 100.
+	 * @return the percentile, or 0 if no values have been recorded.
+	 */
+	public long getPercentile(double percentile) {
+		Lib.assertTrue(percentile >= 0 && percentile <= 100);
+
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long seen = 0;
+
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank && seen > 0) {
+				if (i + 1 == counts.length)
+					return max;
+
+				return Math.min(bucketLowerBound(i + 1) - 1, max);
+			}
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Return the number of buckets.
+	 *
+	 * @return the number of buckets.
+	 */
+	public int getNumBuckets() {
+		return counts.length;
+	}
+
+	/**
+	 * Return the number of values recorded in the specified bucket.
+	 *
+	 * @param i the bucket.
+	 * @return the number of values.
+	 */
+	public long getBucketCount(int i) {
+		return counts[i];
+	}
+
+	/**
+	 * Return the smallest value the specified bucket holds.
+	 *
+	 * @param i the bucket.
+	 * @return the smallest value.
+	 */
+	public static long bucketLowerBound(int i) {
+		if (i < subBuckets)
+			return i;
+
+		int shift = (i - subBuckets) / subBuckets;
+		int sub = (i - subBuckets) % subBuckets;
+		return (long) (subBuckets + sub) << shift;
+	}
+
+	/**
+	 * Return the bucket holding the specified value. Values below
+	 * <tt>2 * subBuckets</tt> have a bucket each; above that, the top
+	 * <tt>subBucketBits + 1</tt> bits of a value select its bucket.
+	 */
+	private static int bucketIndex(long value) {
+		if (value < subBuckets)
+			return (int) value;
+
+		int shift = 63 - Long.numberOfLeadingZeros(value) - subBucketBits;
+		int sub = (int) (value >>> shift) - subBuckets;
+		return subBuckets + shift * subBuckets + sub;
+	}
+
+	private static final int subBucketBits = 3;
+
+	private static final int subBuckets = 1 << subBucketBits;
+
+	/** The number of values recorded in each bucket. */
+	private long[] counts = new long[subBuckets + (63 - subBucketBits)
+			* subBuckets];
+
+	private long count = 0;
+
+	private long total = 0;
+
+	private long max = 0;
+}
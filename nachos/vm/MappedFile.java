@@ -0,0 +1,196 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.Arrays;
+
+/**
+ * A file mapped into memory by <tt>mmap()</tt>, shared by every process
+ * mapping the same file.
+ *
+ * <p>
+ * A page of the file is read in when a process first touches it, and the same
+ * physical page is then mapped by every process that touches it while it is
+ * resident. Each process mapping a resident page holds a reference to it in
+ * the kernel's page reference counts. A page that any process wrote to is
+ * written back to the file when its last reference is released, whether
+ * because the page was evicted or because the file was unmapped. All methods
+ * must be called with <tt>VMKernel.vmLock</tt> held.
+ */
+public class MappedFile {
+	/**
+	 * Allocate a new mapping of the specified file.
+	 *
+	 * @param name the name of the file.
+	 * @param file the file, which belongs to the mapping from now on.
+	 */
+	MappedFile(String name, OpenFile file) {
+		this.name = name;
+		this.file = file;
+
+		length = Math.max(file.length(), 0);
+		pages = new int[(length + pageSize - 1) / pageSize];
+		Arrays.fill(pages, -1);
+		dirty = new boolean[pages.length];
+	}
+
+	/**
+	 * Return the name of the mapped file.
+	 *
+	 * @return the file's name.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Return the length of the file when it was first mapped. The mapping
+	 * does not grow or shrink with the file.
+	 *
+	 * @return the length of the mapping, in bytes.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Return the number of pages the mapping spans.
+	 *
+	 * @return the number of pages.
+	 */
+	public int getNumPages() {
+		return pages.length;
+	}
+
+	/**
+	 * Return the physical page holding the specified page of the file, and add
+	 * a reference to it for the caller.
+	 *
+	 * @param i the page number within the file.
+	 * @return the physical page number, or -1 if the page is not resident.
+	 */
+	int getPage(int i) {
+		int ppn = pages[i];
+		if (ppn != -1)
+			UserKernel.referencePage(ppn);
+
+		return ppn;
+	}
+
+	/**
+	 * Read the specified page of the file into a newly allocated physical
+	 * page, whose reference passes to the caller. The part of the last page
+	 * past the end of the file is zero-filled.
+	 *
+	 * @param i the page number within the file.
+	 * @param ppn the physical page to read into.
+	 */
+	void loadPage(int i, int ppn) {
+		Lib.assertTrue(pages[i] == -1);
+
+		byte[] memory = Machine.processor().getMemory();
+		int paddr = ppn * pageSize;
+		Arrays.fill(memory, paddr, paddr + pageSize, (byte) 0);
+
+		// the file may have been truncated since it was mapped
+		int amount = Math.min(pageSize, length - i * pageSize);
+		file.read(i * pageSize, memory, paddr, amount);
+
+		pages[i] = ppn;
+		dirty[i] = false;
+
+		Lib.debug(dbgVM, "\tread page " + i + " of " + name);
+	}
+
+	/**
+	 * Remove a reference to a page returned by <tt>getPage()</tt> or loaded
+	 * by <tt>loadPage()</tt>. The page is written back if it is dirty and
+	 * either this is its last reference or <i>flush</i> is set, and is freed
+	 * with its last reference.
+	 *
+	 * @param i the page number within the file.
+	 * @param written <tt>true</tt> if the caller wrote to the page.
+	 * @param flush <tt>true</tt> to write the page back even if other
+	 * processes still map it.
+	 */
+	void releasePage(int i, boolean written, boolean flush) {
+		int ppn = pages[i];
+		Lib.assertTrue(ppn != -1);
+
+		dirty[i] |= written;
+
+		boolean last = (UserKernel.getReferenceCount(ppn) == 1);
+		if (dirty[i] && (last || flush))
+			writePage(i);
+
+		if (last)
+			pages[i] = -1;
+
+		UserKernel.freePage(ppn);
+	}
+
+	/**
+	 * Add a process to the mapping's users.
+	 */
+	void open() {
+		users++;
+	}
+
+	/**
+	 * Remove a process from the mapping's users, closing the file once the
+	 * last one has unmapped every page.
+	 *
+	 * @return <tt>true</tt> if no process uses the mapping any more.
+	 */
+	boolean close() {
+		Lib.assertTrue(users > 0);
+		if (--users > 0)
+			return false;
+
+		for (int i = 0; i < pages.length; i++)
+			Lib.assertTrue(pages[i] == -1);
+
+		file.close();
+		return true;
+	}
+
+	private void writePage(int i) {
+		// the file's contents change under any executable cached from it
+		UserKernel.coffCache.invalidate(name);
+
+		int amount = Math.min(pageSize, length - i * pageSize);
+		file.write(i * pageSize, Machine.processor().getMemory(), pages[i]
+				* pageSize, amount);
+
+		dirty[i] = false;
+
+		Lib.debug(dbgVM, "\twrote back page " + i + " of " + name);
+	}
+
+	/** The name of the mapped file. */
+	private String name;
+
+	private OpenFile file;
+
+	/** The length of the mapping, in bytes. */
+	private int length;
+
+	/** The physical page holding each page of the file, or -1. */
+	private int[] pages;
+
+	/**
+	 * Set for each resident page that a process has written to and that has
+	 * not been written back since.
+	 */
+	private boolean[] dirty;
+
+	/** The number of processes mapping the file. */
+	private int users = 0;
+
+	private static final int pageSize = Processor.pageSize;
+
+	private static final char dbgVM = 'v';
+}
@@ -0,0 +1,45 @@
+package nachos.vm;
+
+/**
+ * A policy for choosing which physical page a <tt>VMKernel</tt> evicts when
+ * it runs out of free pages.
+ *
+ * <p>
+ * A policy sees only physical page numbers. The kernel tells it when a page
+ * becomes resident and when it stops being resident, and asks it for a
+ * victim among the resident pages. The policy reads and clears the pages'
+ * reference bits, and reads their dirty bits, through the kernel's frame
+ * table (<tt>VMKernel.isUsed()</tt>, <tt>VMKernel.clearUsed()</tt> and
+ * <tt>VMKernel.isDirty()</tt>), and must never choose a page that is pinned.
+ *
+ * <p>
+ * The policy is named by the <tt>nachos.conf</tt> key
+ * <tt>VMKernel.replacementPolicy</tt>, and must have a public constructor
+ * taking no arguments.
+ */
+public interface PageReplacementPolicy {
+	/**
+	 * Called when the specified physical page is mapped by a process and so
+	 * becomes a candidate for eviction.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	public void pageLoaded(int ppn);
+
+	/**
+	 * Called when the specified physical page is no longer mapped by any
+	 * process, either because it was evicted or because its owner exited.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	public void pageRemoved(int ppn);
+
+	/**
+	 * Choose a resident page to evict. The page is not removed until the
+	 * kernel calls <tt>pageRemoved()</tt>.
+	 *
+	 * @return the physical page number of the victim, or -1 if every resident
+	 * page is pinned.
+	 */
+	public int chooseVictim();
+}
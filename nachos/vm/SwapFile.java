@@ -0,0 +1,178 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.Arrays;
+
+/**
+ * The swap file shared by every process in a <tt>VMKernel</tt>.
+ *
+ * <p>
+ * The swap file is a file in <tt>ThreadedKernel.fileSystem</tt>, divided into
+ * page-sized slots. Free slots are tracked in a bitmap, and the file grows
+ * whenever no run of free slots is long enough. Pages are written and read in
+ * clusters: a run of adjacent slots is transferred with a single file
+ * operation, so a cluster costs one I/O rather than one per page.
+ */
+public class SwapFile {
+	/**
+	 * Create an empty swap file with the specified name, replacing any file
+	 * already there.
+	 *
+	 * @param name the name of the swap file.
+	 */
+	public SwapFile(String name) {
+		this.name = name;
+
+		file = ThreadedKernel.fileSystem.open(name, true);
+		Lib.assertTrue(file != null, "unable to create swap file " + name);
+	}
+
+	/**
+	 * Allocate a run of adjacent free slots.
+	 *
+	 * @param count the number of slots.
+	 * @return the first slot of the run.
+	 */
+	public int allocate(int count) {
+		Lib.assertTrue(count > 0);
+
+		lock.acquire();
+
+		int first = findFreeRun(count);
+		for (int slot = first; slot < first + count; slot++)
+			slotMap[slot >> 6] |= 1L << slot;
+
+		lock.release();
+		return first;
+	}
+
+	/**
+	 * Free a slot allocated by <tt>allocate()</tt>.
+	 *
+	 * @param slot the slot to free.
+	 */
+	public void free(int slot) {
+		lock.acquire();
+
+		Lib.assertTrue(isAllocated(slot));
+		slotMap[slot >> 6] &= ~(1L << slot);
+
+		lock.release();
+	}
+
+	/**
+	 * Write the specified physical pages to a run of adjacent slots with a
+	 * single file operation.
+	 *
+	 * @param firstSlot the slot to write the first page to.
+	 * @param ppns the physical pages to write, one per slot.
+	 * @param count the number of pages to write.
+	 */
+	public void write(int firstSlot, int[] ppns, int count) {
+		byte[] memory = Machine.processor().getMemory();
+		byte[] buffer = new byte[count * pageSize];
+
+		for (int i = 0; i < count; i++)
+			System.arraycopy(memory, ppns[i] * pageSize, buffer, i * pageSize,
+					pageSize);
+
+		int amount = file.write(firstSlot * pageSize, buffer, 0, buffer.length);
+		Lib.assertTrue(amount == buffer.length, "swap write failed");
+
+		Machine.stats().numSwapWrites += count;
+		Lib.debug(dbgVM, "\tswap write of " + count + " pages at slot "
+				+ firstSlot);
+	}
+
+	/**
+	 * Read a run of adjacent slots into the specified physical pages with a
+	 * single file operation.
+	 *
+	 * @param firstSlot the slot to read the first page from.
+	 * @param ppns the physical pages to read into, one per slot.
+	 * @param count the number of pages to read.
+	 */
+	public void read(int firstSlot, int[] ppns, int count) {
+		byte[] memory = Machine.processor().getMemory();
+		byte[] buffer = new byte[count * pageSize];
+
+		int amount = file.read(firstSlot * pageSize, buffer, 0, buffer.length);
+		Lib.assertTrue(amount == buffer.length, "swap read failed");
+
+		for (int i = 0; i < count; i++)
+			System.arraycopy(buffer, i * pageSize, memory, ppns[i] * pageSize,
+					pageSize);
+
+		Machine.stats().numSwapReads += count;
+		Lib.debug(dbgVM, "\tswap read of " + count + " pages at slot "
+				+ firstSlot);
+	}
+
+	/**
+	 * Close and remove the swap file.
+	 */
+	public void close() {
+		file.close();
+		ThreadedKernel.fileSystem.remove(name);
+	}
+
+	private boolean isAllocated(int slot) {
+		return slot < slotMap.length * 64
+				&& (slotMap[slot >> 6] & (1L << slot)) != 0;
+	}
+
+	/**
+	 * Return the first slot of the lowest run of <i>count</i> free slots,
+	 * growing the bitmap if there is none. Whole words of allocated slots are
+	 * skipped at once.
+	 */
+	private int findFreeRun(int count) {
+		int runStart = 0, runLength = 0;
+
+		for (int word = 0; word < slotMap.length; word++) {
+			if (slotMap[word] == -1L) {
+				runLength = 0;
+				continue;
+			}
+
+			for (int bit = 0; bit < 64; bit++) {
+				if ((slotMap[word] & (1L << bit)) != 0) {
+					runLength = 0;
+					continue;
+				}
+
+				if (runLength++ == 0)
+					runStart = word * 64 + bit;
+				if (runLength == count)
+					return runStart;
+			}
+		}
+
+		// extend the run at the end of the bitmap, if any, into new words
+		if (runLength == 0)
+			runStart = slotMap.length * 64;
+
+		int words = Math.max(slotMap.length * 2, (runStart + count + 63) / 64);
+		slotMap = Arrays.copyOf(slotMap, words);
+
+		return runStart;
+	}
+
+	/** The name of the swap file. */
+	private String name;
+
+	private OpenFile file;
+
+	/** One bit per slot, set if the slot is allocated. */
+	private long[] slotMap = new long[1];
+
+	private Lock lock = new Lock();
+
+	private static final int pageSize = Processor.pageSize;
+
+	private static final char dbgVM = 'v';
+}
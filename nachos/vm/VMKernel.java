@@ -5,8 +5,20 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.HashMap;
+
 /**
  * A kernel that can support multiple demand-paging user processes.
+ *
+ * <p>
+ * Page replacement is global: when physical memory runs out, the kernel's
+ * <tt>PageReplacementPolicy</tt> chooses a victim among the resident pages
+ * of every process. The kernel keeps an inverted page table, indexed by
+ * physical page, recording the process and virtual page each page is mapped
+ * by; a page shared through the executable cache or a memory-mapped file
+ * records every process mapping it. Page faults are handled one
+ * at a time, under <tt>vmLock</tt>; a kernel transfer pins the physical page
+ * it is copying to or from while it waits for the file system.
  */
 public class VMKernel extends UserKernel {
 	/**
@@ -17,10 +29,48 @@ public class VMKernel extends UserKernel {
 	}
 
 	/**
-	 * Initialize this kernel.
+	 * Initialize this kernel. Creates the swap file, named by the
+	 * <tt>nachos.conf</tt> key <tt>VMKernel.swapFile</tt>, and reads the
+	 * number of pages transferred to or from swap at once from
+	 * <tt>VMKernel.swapCluster</tt>. Creates the page replacement policy named
+	 * by <tt>VMKernel.replacementPolicy</tt>. When the processor has a TLB,
+	 * full TLBs are refilled by a clock sweep, or at random if
+	 * <tt>VMKernel.tlbReplacement</tt> is <tt>random</tt>. Records the latency
+	 * of every page fault if <tt>VMKernel.faultLatencies</tt> is
+	 * <tt>true</tt>, and writes the histograms as CSV to the file named by
+	 * <tt>VMKernel.faultLatencyFile</tt>, if any, when the kernel terminates.
 	 */
 	public void initialize(String[] args) {
 		super.initialize(args);
+
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		frames = new Mapping[numPhysPages];
+		sharedFrames = new boolean[numPhysPages];
+		pinCounts = new int[numPhysPages];
+		vmLock = new Lock();
+
+		String policyName = Config.getString("VMKernel.replacementPolicy",
+				"nachos.vm.ClockPolicy");
+		replacementPolicy = (PageReplacementPolicy) Lib
+				.constructObject(policyName);
+		Machine.stats().replacementPolicy = policyName;
+
+		String tlbReplacement = Config.getString("VMKernel.tlbReplacement",
+				"clock");
+		Lib.assertTrue(tlbReplacement.equals("clock")
+				|| tlbReplacement.equals("random"),
+				"unknown TLB replacement " + tlbReplacement);
+		randomTLBReplacement = tlbReplacement.equals("random");
+
+		if (Config.getBoolean("VMKernel.faultLatencies", false)) {
+			faultStatistics = new FaultStatistics();
+			Machine.stats().faultLatencies = faultStatistics;
+		}
+
+		swapCluster = Config.getInteger("VMKernel.swapCluster", 4);
+		Lib.assertTrue(swapCluster >= 1);
+
+		swap = new SwapFile(Config.getString("VMKernel.swapFile", "swap"));
 	}
 
 	/**
@@ -41,9 +91,344 @@ public class VMKernel extends UserKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		if (swap != null)
+			swap.close();
+
+		String csvName = Config.getString("VMKernel.faultLatencyFile");
+		if (faultStatistics != null && csvName != null) {
+			OpenFile csv = ThreadedKernel.fileSystem.open(csvName, true);
+			if (csv != null) {
+				faultStatistics.writeCSV(csv);
+				csv.close();
+			}
+		}
+
 		super.terminate();
 	}
 
+	/**
+	 * Record that the specified physical page holds the specified page of a
+	 * process, making it a candidate for eviction.
+	 *
+	 * @param ppn the physical page number.
+	 * @param owner the process owning the page.
+	 * @param vpn the virtual page number within <i>owner</i>.
+	 */
+	static void mapPrivatePage(int ppn, VMProcess owner, int vpn) {
+		Lib.assertTrue(frames[ppn] == null);
+
+		frames[ppn] = new Mapping(owner, vpn, null);
+		sharedFrames[ppn] = false;
+		replacementPolicy.pageLoaded(ppn);
+	}
+
+	/**
+	 * Record that the specified private physical page is no longer resident.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	static void unmapPrivatePage(int ppn) {
+		Lib.assertTrue(frames[ppn] != null && !sharedFrames[ppn]);
+
+		replacementPolicy.pageRemoved(ppn);
+		frames[ppn] = null;
+	}
+
+	/**
+	 * Record that a process has mapped the specified page of the executable
+	 * cache or of a memory-mapped file. The page becomes a candidate for
+	 * eviction when its first mapping is made.
+	 *
+	 * @param ppn the physical page number.
+	 * @param process the process mapping the page.
+	 * @param vpn the virtual page number within <i>process</i>.
+	 */
+	static void mapSharedPage(int ppn, VMProcess process, int vpn) {
+		Lib.assertTrue(frames[ppn] == null || sharedFrames[ppn]);
+
+		boolean first = (frames[ppn] == null);
+		frames[ppn] = new Mapping(process, vpn, frames[ppn]);
+		sharedFrames[ppn] = true;
+
+		if (first)
+			replacementPolicy.pageLoaded(ppn);
+	}
+
+	/**
+	 * Record that a process has unmapped the specified page of the executable
+	 * cache or of a memory-mapped file.
+	 *
+	 * @param ppn the physical page number.
+	 * @param process the process that mapped the page.
+	 * @param vpn the virtual page number within <i>process</i>.
+	 */
+	static void unmapSharedPage(int ppn, VMProcess process, int vpn) {
+		Lib.assertTrue(sharedFrames[ppn]);
+
+		Mapping previous = null;
+		for (Mapping m = frames[ppn]; m != null; previous = m, m = m.next) {
+			if (m.process == process && m.vpn == vpn) {
+				if (previous == null)
+					frames[ppn] = m.next;
+				else
+					previous.next = m.next;
+				break;
+			}
+		}
+
+		if (frames[ppn] == null)
+			replacementPolicy.pageRemoved(ppn);
+	}
+
+	/**
+	 * Return the shared mapping of the specified file, creating it if no
+	 * process maps the file, and add a user to it. The mapping reads and
+	 * writes the file through its own <tt>OpenFile</tt>, so it outlives the
+	 * file descriptor it was created from. Must be called with
+	 * <tt>vmLock</tt> held.
+	 *
+	 * @param file the file to map.
+	 * @return the file's mapping, or <tt>null</tt> if the file cannot be
+	 * reopened.
+	 */
+	static MappedFile openMappedFile(OpenFile file) {
+		Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+		String name = file.getName();
+		MappedFile mappedFile = mappedFiles.get(name);
+		if (mappedFile == null) {
+			OpenFile mappedOpenFile = file.getFileSystem().open(name, false);
+			if (mappedOpenFile == null)
+				return null;
+
+			mappedFile = new MappedFile(name, mappedOpenFile);
+			mappedFiles.put(name, mappedFile);
+		}
+
+		mappedFile.open();
+		return mappedFile;
+	}
+
+	/**
+	 * Remove a user from a mapping returned by <tt>openMappedFile()</tt>,
+	 * once the user has unmapped every page. Must be called with
+	 * <tt>vmLock</tt> held.
+	 *
+	 * @param mappedFile the mapping.
+	 */
+	static void closeMappedFile(MappedFile mappedFile) {
+		Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+		if (mappedFile.close())
+			mappedFiles.remove(mappedFile.getName());
+	}
+
+	/**
+	 * Evict the page chosen by the replacement policy, from every process
+	 * mapping it. A page of the executable cache is freed when memory is next
+	 * reclaimed; a page of a mapped file is written back if dirty and freed.
+	 * Must be called with <tt>vmLock</tt> held.
+	 *
+	 * @return <tt>true</tt> if a page was evicted, or <tt>false</tt> if every
+	 * resident page is pinned.
+	 */
+	static boolean evictPage() {
+		Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+		// the policy must see the reference bits cached in the TLB
+		UserProcess current = currentProcess();
+		if (current instanceof VMProcess && Machine.processor().hasTLB())
+			((VMProcess) current).syncTLB();
+
+		int ppn = replacementPolicy.chooseVictim();
+		if (ppn == -1)
+			return false;
+
+		Lib.assertTrue(frames[ppn] != null && !isPinned(ppn));
+
+		// each eviction unlinks its own mapping
+		while (frames[ppn] != null)
+			frames[ppn].process.evict(frames[ppn].vpn);
+
+		return true;
+	}
+
+	/**
+	 * Evict a private page that can be dropped without writing it to swap
+	 * and has not been referenced recently, bypassing the replacement policy,
+	 * to make room for a page being read ahead. Must be called with
+	 * <tt>vmLock</tt> held.
+	 *
+	 * @return <tt>true</tt> if a page was evicted.
+	 */
+	static boolean evictIdlePage() {
+		Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+		for (int i = 0; i < frames.length; i++) {
+			int ppn = idleHand;
+			idleHand = (idleHand + 1) % frames.length;
+
+			if (frames[ppn] != null && !sharedFrames[ppn] && !isPinned(ppn)
+					&& !isUsed(ppn) && !isDirty(ppn)) {
+				frames[ppn].process.evict(frames[ppn].vpn);
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Prevent the specified physical page from being evicted until a matching
+	 * call to <tt>unpinPage()</tt>.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	static void pinPage(int ppn) {
+		pinCounts[ppn]++;
+	}
+
+	/**
+	 * Undo a call to <tt>pinPage()</tt>.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	static void unpinPage(int ppn) {
+		Lib.assertTrue(pinCounts[ppn] > 0);
+		pinCounts[ppn]--;
+	}
+
+	/**
+	 * Test whether the specified physical page is pinned.
+	 *
+	 * @param ppn the physical page number.
+	 * @return <tt>true</tt> if the page must not be evicted.
+	 */
+	public static boolean isPinned(int ppn) {
+		return pinCounts[ppn] > 0;
+	}
+
+	/**
+	 * Test whether the specified resident page has been referenced since its
+	 * reference bit was last cleared, by any process mapping it.
+	 *
+	 * @param ppn the physical page number.
+	 * @return <tt>true</tt> if the page has been referenced.
+	 */
+	public static boolean isUsed(int ppn) {
+		for (Mapping m = frames[ppn]; m != null; m = m.next) {
+			if (m.process.getEntry(m.vpn).used)
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Clear the reference bit of the specified resident page, in every
+	 * process mapping it.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	public static void clearUsed(int ppn) {
+		for (Mapping m = frames[ppn]; m != null; m = m.next)
+			m.process.getEntry(m.vpn).used = false;
+	}
+
+	/**
+	 * Test whether the specified resident page must be written to swap, or
+	 * back to its mapped file, before it can be evicted. Pages of the
+	 * executable cache are never dirty.
+	 *
+	 * @param ppn the physical page number.
+	 * @return <tt>true</tt> if the page is dirty.
+	 */
+	public static boolean isDirty(int ppn) {
+		for (Mapping m = frames[ppn]; m != null; m = m.next) {
+			if (m.process.getEntry(m.vpn).dirty)
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Return an object identifying the page held in the specified private
+	 * physical page, which stays the same while the page is swapped out and
+	 * loaded again, for policies that remember evicted pages.
+	 *
+	 * @param ppn the physical page number.
+	 * @return the identity of the page, or <tt>null</tt> if the page is
+	 * shared.
+	 */
+	public static Object pageKey(int ppn) {
+		if (frames[ppn] == null || sharedFrames[ppn])
+			return null;
+
+		return frames[ppn].process.getEntry(frames[ppn].vpn);
+	}
+
+	/**
+	 * One mapping of a physical page into a process, in the inverted page
+	 * table.
+	 */
+	private static class Mapping {
+		Mapping(VMProcess process, int vpn, Mapping next) {
+			this.process = process;
+			this.vpn = vpn;
+			this.next = next;
+		}
+
+		VMProcess process;
+
+		int vpn;
+
+		/** The next mapping of the same shared page. */
+		Mapping next;
+	}
+
+	/** Globally accessible reference to the swap file. */
+	public static SwapFile swap;
+
+	/** The most pages transferred to or from swap with one file operation. */
+	public static int swapCluster;
+
+	/** Whether TLB entries are replaced at random rather than by clock. */
+	public static boolean randomTLBReplacement;
+
+	/**
+	 * The latencies of page faults, or <tt>null</tt> if they are not being
+	 * recorded.
+	 */
+	public static FaultStatistics faultStatistics = null;
+
+	/** The policy choosing which page to evict. */
+	public static PageReplacementPolicy replacementPolicy;
+
+	/** Serializes page faults, evictions and address space teardown. */
+	public static Lock vmLock;
+
+	/**
+	 * The inverted page table: the mappings of each physical page, or
+	 * <tt>null</tt> if the page is not mapped by any process.
+	 */
+	private static Mapping[] frames;
+
+	/**
+	 * Set for each physical page that belongs to the executable cache or to a
+	 * memory-mapped file.
+	 */
+	private static boolean[] sharedFrames;
+
+	/** The number of transfers in progress to or from each physical page. */
+	private static int[] pinCounts;
+
+	/** The file mappings in use, by file name. */
+	private static HashMap<String, MappedFile> mappedFiles = new HashMap<String, MappedFile>();
+
+	/** The next page <tt>evictIdlePage()</tt> considers. */
+	private static int idleHand = 0;
+
 	// dummy variables to make javac smarter
 	private static VMProcess dummy1 = null;
 
@@ -5,8 +5,36 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
+ *
+ * <p>
+ * No page is loaded when the process starts. Every page table entry starts
+ * out invalid, and the first reference to a page, by the program or by a
+ * kernel transfer, loads it from its COFF section or zero-fills it. When
+ * physical memory runs out the kernel's replacement policy chooses a page to
+ * evict, from this process or any other. Dirty pages are written to the
+ * kernel's swap file first, together with neighbouring dirty pages that have not been
+ * used recently, into adjacent slots; a fault on a swapped page reads back
+ * the neighbours stored next to it as well, if there are free pages for
+ * them.
+ *
+ * <p>
+ * Files mapped with <tt>mmap()</tt> extend the address space past its end.
+ * Their pages are read from the file on first reference, shared with any
+ * other process mapping the same file, and written back to the file instead
+ * of to swap.
+ *
+ * <p>
+ * With a TLB, a miss on a resident page is refilled straight from the page
+ * table, which is indexed by virtual page. When the process is switched out
+ * its TLB entries are saved in a shadow TLB, and when it is switched back in
+ * the entries whose translations are unchanged are reloaded, so the process
+ * does not refill its working set from scratch after every context switch.
  */
 public class VMProcess extends UserProcess {
 	/**
@@ -22,6 +50,9 @@ public class VMProcess extends UserProcess {
 	 */
 	public void saveState() {
 		super.saveState();
+
+		if (Machine.processor().hasTLB())
+			saveTLB();
 	}
 
 	/**
@@ -29,41 +60,1031 @@ public class VMProcess extends UserProcess {
 	 * <tt>UThread.restoreState()</tt>.
 	 */
 	public void restoreState() {
-		super.restoreState();
+		if (Machine.processor().hasTLB())
+			restoreTLB();
+		else
+			super.restoreState();
 	}
 
 	/**
 	 * Initializes page tables for this process so that the executable can be
 	 * demand-paged.
-	 * 
+	 *
 	 * @return <tt>true</tt> if successful.
 	 */
 	protected boolean loadSections() {
-		return super.loadSections();
+		pageTable = new TranslationEntry[numPages];
+		pageSections = new int[numPages];
+		Arrays.fill(pageSections, -1);
+
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+
+			for (int i = 0; i < section.getLength(); i++) {
+				int vpn = section.getFirstVPN() + i;
+
+				pageSections[vpn] = s;
+				pageTable[vpn] = new TranslationEntry(vpn, -1, false,
+						image.isShared(s) || UserKernel.copyOnWrite, false,
+						false);
+			}
+		}
+
+		// the stack and argument pages are zero-filled on first use
+		for (int vpn = numPages - stackPages - 1; vpn < numPages; vpn++)
+			pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false,
+					false);
+
+		return true;
+	}
+
+	/**
+	 * Allocate a page table with every page resident, for a process restored
+	 * from a boot snapshot, and hand its pages to the kernel's replacement
+	 * policy. The pages are marked dirty, since their contents exist only in
+	 * memory.
+	 *
+	 * @return <tt>true</tt> if enough physical pages were available.
+	 */
+	protected boolean allocatePageTable() {
+		if (!super.allocatePageTable())
+			return false;
+
+		pageSections = new int[numPages];
+		Arrays.fill(pageSections, -1);
+
+		VMKernel.vmLock.acquire();
+
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			pageTable[vpn].dirty = true;
+			VMKernel.mapPrivatePage(pageTable[vpn].ppn, this, vpn);
+		}
+
+		VMKernel.vmLock.release();
+		return true;
 	}
 
 	/**
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
+		VMKernel.vmLock.acquire();
+
+		if (pageTable != null && Machine.processor().hasTLB())
+			flushTLB();
+
+		if (fileMappings != null) {
+			for (Iterator<FileMapping> i = fileMappings.values().iterator(); i
+					.hasNext();)
+				unmapPages(i.next());
+
+			fileMappings = null;
+		}
+
+		// a page table that failed to load from a snapshot was never mapped
+		if (pageSections != null) {
+			for (int vpn = 0; vpn < pageTable.length; vpn++) {
+				TranslationEntry entry = pageTable[vpn];
+				if (entry == null || !entry.valid)
+					continue;
+
+				if (isSharedPage(vpn))
+					VMKernel.unmapSharedPage(entry.ppn, this, vpn);
+				else
+					VMKernel.unmapPrivatePage(entry.ppn);
+			}
+		}
+
+		if (swapSlots != null) {
+			for (int vpn = 0; vpn < swapSlots.length; vpn++) {
+				if (swapSlots[vpn] != -1)
+					VMKernel.swap.free(swapSlots[vpn]);
+			}
+
+			swapSlots = null;
+		}
+
 		super.unloadSections();
+
+		VMKernel.vmLock.release();
+	}
+
+	/**
+	 * Read from a file into this process's virtual memory a page at a time,
+	 * pinning each page while the file system fills it, so that the page
+	 * cannot be evicted by another process in the meantime.
+	 */
+	public int readFileToVirtualMemory(OpenFile file, int vaddr, int length) {
+		Lib.assertTrue(length >= 0);
+
+		int amount = 0;
+		while (amount < length) {
+			int ppn = pinPage(vaddr + amount, true);
+			if (ppn == -1)
+				break;
+
+			int chunk = Math.min(length - amount, pageSize
+					- Processor.offsetFromAddress(vaddr + amount));
+			int read = super.readFileToVirtualMemory(file, vaddr + amount,
+					chunk);
+			VMKernel.unpinPage(ppn);
+
+			if (read == -1)
+				return (amount > 0) ? amount : -1;
+
+			amount += read;
+			if (read < chunk)
+				break;
+		}
+
+		return amount;
+	}
+
+	/**
+	 * Write from this process's virtual memory to a file a page at a time,
+	 * pinning each page while the file system copies it.
+	 */
+	public int writeFileFromVirtualMemory(OpenFile file, int vaddr, int length) {
+		Lib.assertTrue(length >= 0);
+
+		int amount = 0;
+		while (amount < length) {
+			int ppn = pinPage(vaddr + amount, false);
+			if (ppn == -1)
+				break;
+
+			int chunk = Math.min(length - amount, pageSize
+					- Processor.offsetFromAddress(vaddr + amount));
+			int written = super.writeFileFromVirtualMemory(file,
+					vaddr + amount, chunk);
+			VMKernel.unpinPage(ppn);
+
+			if (written == -1)
+				return (amount > 0) ? amount : -1;
+
+			amount += written;
+			if (written < chunk)
+				break;
+		}
+
+		return amount;
+	}
+
+	/**
+	 * Make the page containing the specified address resident and pin it.
+	 * The page is pinned with <tt>vmLock</tt> held, once the translation has
+	 * been checked again, since the page may have been evicted or copied
+	 * after <tt>translateForTransfer()</tt> released the lock.
+	 *
+	 * @return the physical page number, or -1 if the address cannot be
+	 * transferred.
+	 */
+	private int pinPage(int vaddr, boolean writing) {
+		while (true) {
+			int paddr = translateForTransfer(vaddr, writing);
+			if (paddr == -1)
+				return -1;
+
+			int ppn = paddr / pageSize;
+			TranslationEntry entry = pageTable[Processor.pageFromAddress(vaddr)];
+
+			VMKernel.vmLock.acquire();
+			boolean current = entry.valid && entry.ppn == ppn
+					&& !(writing && entry.readOnly);
+			if (current)
+				VMKernel.pinPage(ppn);
+			VMKernel.vmLock.release();
+
+			if (current)
+				return ppn;
+		}
+	}
+
+	/**
+	 * Translate a virtual address for a kernel-initiated transfer, first
+	 * loading the page if it is not resident.
+	 */
+	protected int translateForTransfer(int vaddr, boolean writing) {
+		int vpn = Processor.pageFromAddress(vaddr);
+
+		// another process may evict the page again once vmLock is released
+		while (vaddr >= 0 && vpn < pageTable.length && pageTable[vpn] != null
+				&& !pageTable[vpn].valid) {
+			VMKernel.vmLock.acquire();
+			boolean loaded = pageTable[vpn].valid || pageIn(vpn);
+			VMKernel.vmLock.release();
+
+			if (!loaded)
+				return -1;
+		}
+
+		return super.translateForTransfer(vaddr, writing);
 	}
 
 	/**
 	 * Handle a user exception. Called by <tt>UserKernel.exceptionHandler()</tt>
 	 * . The <i>cause</i> argument identifies which exception occurred; see the
 	 * <tt>Processor.exceptionZZZ</tt> constants.
-	 * 
+	 *
 	 * @param cause the user exception that occurred.
 	 */
 	public void handleException(int cause) {
 		Processor processor = Machine.processor();
 
+		long faultTime = Machine.timer().getTime();
+		faultType = -1;
+
 		switch (cause) {
+		case Processor.exceptionPageFault:
+			if (!handlePageFault(processor.readRegister(Processor.regBadVAddr)))
+				super.handleException(cause);
+			break;
+
+		case Processor.exceptionTLBMiss:
+			if (!handleTLBMiss(processor.readRegister(Processor.regBadVAddr)))
+				super.handleException(cause);
+			break;
+
 		default:
 			super.handleException(cause);
 			break;
 		}
+
+		// pages loaded for a system call's transfers are not faults
+		boolean fault = (cause == Processor.exceptionPageFault
+				|| cause == Processor.exceptionTLBMiss
+				|| cause == Processor.exceptionReadOnly);
+		if (fault && faultType != -1 && VMKernel.faultStatistics != null) {
+			long latency = Machine.timer().getTime() - faultTime;
+			VMKernel.faultStatistics.record(pid, faultType, latency);
+		}
+	}
+
+	/**
+	 * Handle a TLB miss on the specified address. A miss on a resident page
+	 * is refilled from the page table without taking <tt>vmLock</tt>, since
+	 * nothing between the test and the refill can block; waiting for the lock
+	 * here would lose the TLB to whichever process holds it. A miss on any
+	 * other page is a page fault.
+	 *
+	 * @param vaddr the address that caused the miss.
+	 * @return <tt>false</tt> if the address is outside the address space or
+	 * the page could not be loaded.
+	 */
+	private boolean handleTLBMiss(int vaddr) {
+		int vpn = Processor.pageFromAddress(vaddr);
+		if (vaddr < 0 || vpn >= pageTable.length || pageTable[vpn] == null)
+			return false;
+
+		if (!pageTable[vpn].valid)
+			return handlePageFault(vaddr);
+
+		loadTLBEntry(vpn);
+		faultType = FaultStatistics.faultTLBRefill;
+		return true;
+	}
+
+	/**
+	 * Handle a page fault or TLB miss on the specified address: make the page
+	 * resident, and load its translation into the TLB if there is one. The
+	 * faulting instruction is restarted when the handler returns.
+	 *
+	 * @param vaddr the address that caused the fault.
+	 * @return <tt>false</tt> if the address is outside the address space or
+	 * the page could not be loaded.
+	 */
+	private boolean handlePageFault(int vaddr) {
+		int vpn = Processor.pageFromAddress(vaddr);
+		if (vaddr < 0 || vpn >= pageTable.length || pageTable[vpn] == null)
+			return false;
+
+		Lib.debug(dbgVM, "fault on vpn " + vpn);
+
+		VMKernel.vmLock.acquire();
+
+		boolean loaded = true;
+		if (!pageTable[vpn].valid) {
+			// the processor counts only the faults it raises itself
+			if (Machine.processor().hasTLB())
+				Machine.stats().numPageFaults++;
+
+			loaded = pageIn(vpn);
+		}
+
+		if (loaded && Machine.processor().hasTLB())
+			loadTLBEntry(vpn);
+
+		VMKernel.vmLock.release();
+		return loaded;
+	}
+
+	/**
+	 * Load the specified page into physical memory: from the swap file if it
+	 * was swapped out, or else from its COFF section or by zero-filling it.
+	 * Read-only and copy-on-write pages are mapped to the executable cache's
+	 * shared copy. Must be called with <tt>VMKernel.vmLock</tt> held.
+	 *
+	 * @param vpn the virtual page to load.
+	 * @return <tt>true</tt> if the page was loaded.
+	 */
+	protected boolean pageIn(int vpn) {
+		TranslationEntry entry = pageTable[vpn];
+		Lib.assertTrue(!entry.valid);
+
+		if (isMappedPage(vpn))
+			return mappedPageIn(vpn);
+
+		if (swapSlots != null && swapSlots[vpn] != -1)
+			return swapIn(vpn);
+
+		int s = pageSections[vpn];
+		CoffSection section = (s == -1) ? null : coff.getSection(s);
+		boolean shared = (section != null && entry.readOnly);
+
+		// the executable cache reads a shared page only if it is not resident
+		boolean[] loaded = new boolean[1];
+
+		int ppn;
+		while (true) {
+			if (shared)
+				ppn = image.getSharedPage(s, vpn - section.getFirstVPN(), loaded);
+			else
+				ppn = UserKernel.allocatePage();
+
+			if (ppn != -1)
+				break;
+			if (!VMKernel.evictPage())
+				return false;
+		}
+
+		if (section == null) {
+			byte[] memory = Machine.processor().getMemory();
+			Arrays.fill(memory, ppn * pageSize, (ppn + 1) * pageSize, (byte) 0);
+			faultType = FaultStatistics.faultZeroFill;
+		}
+		else if (!shared) {
+			section.loadPage(vpn - section.getFirstVPN(), ppn);
+			Machine.stats().numCOFFReads++;
+			faultType = FaultStatistics.faultCOFF;
+		}
+		else if (loaded[0]) {
+			faultType = FaultStatistics.faultCOFF;
+		}
+		else {
+			faultType = FaultStatistics.faultShared;
+		}
+
+		entry.ppn = ppn;
+		entry.used = false;
+		entry.dirty = false;
+		entry.valid = true;
+
+		if (shared)
+			VMKernel.mapSharedPage(ppn, this, vpn);
+		else
+			VMKernel.mapPrivatePage(ppn, this, vpn);
+
+		return true;
+	}
+
+	/**
+	 * Read the specified page back from the swap file, along with any
+	 * neighbouring pages that are swapped out to adjacent slots, up to the
+	 * cluster size, as long as free pages are available for them. The swap
+	 * slots are kept, so the pages can be dropped again without being written
+	 * as long as they stay clean.
+	 */
+	private boolean swapIn(int vpn) {
+		int ppn = allocatePage();
+		if (ppn == -1)
+			return false;
+
+		faultType = FaultStatistics.faultSwap;
+
+		int slot = swapSlots[vpn];
+		int cluster = VMKernel.swapCluster;
+
+		// ppns[page - vpn + cluster - 1] holds the page for each page in the run
+		int[] ppns = new int[2 * cluster - 1];
+		ppns[cluster - 1] = ppn;
+
+		int first = vpn, last = vpn;
+		while (last - first + 1 < cluster) {
+			int page;
+			if (first > 0 && isSwappedTo(first - 1, slot - (vpn - first + 1)))
+				page = first - 1;
+			else if (last + 1 < pageTable.length
+					&& isSwappedTo(last + 1, slot + (last + 1 - vpn)))
+				page = last + 1;
+			else
+				break;
+
+			int extra = UserKernel.allocatePage();
+			if (extra == -1 && VMKernel.evictIdlePage())
+				extra = UserKernel.allocatePage();
+			if (extra == -1)
+				break;
+
+			ppns[page - vpn + cluster - 1] = extra;
+			first = Math.min(first, page);
+			last = Math.max(last, page);
+		}
+
+		int count = last - first + 1;
+		int offset = first - vpn + cluster - 1;
+		VMKernel.swap.read(swapSlots[first], Arrays.copyOfRange(ppns, offset,
+				offset + count), count);
+
+		for (int page = first; page <= last; page++) {
+			TranslationEntry entry = pageTable[page];
+			entry.ppn = ppns[page - vpn + cluster - 1];
+			entry.used = false;
+			entry.dirty = false;
+			entry.valid = true;
+
+			VMKernel.mapPrivatePage(entry.ppn, this, page);
+		}
+
+		return true;
+	}
+
+	private boolean isSwappedTo(int vpn, int slot) {
+		return slot >= 0 && swapSlots[vpn] == slot && !pageTable[vpn].valid;
+	}
+
+	/**
+	 * Load the specified page of a mapped file, reading it from the file
+	 * unless another process mapping the file already has it resident.
+	 */
+	private boolean mappedPageIn(int vpn) {
+		FileMapping mapping = pageMappings[vpn];
+		int i = vpn - mapping.firstVPN;
+
+		int ppn = mapping.file.getPage(i);
+		if (ppn != -1) {
+			faultType = FaultStatistics.faultShared;
+		}
+		else {
+			ppn = allocatePage();
+			if (ppn == -1)
+				return false;
+
+			mapping.file.loadPage(i, ppn);
+			faultType = FaultStatistics.faultMappedFile;
+		}
+
+		TranslationEntry entry = pageTable[vpn];
+		entry.ppn = ppn;
+		entry.used = false;
+		entry.dirty = false;
+		entry.valid = true;
+
+		VMKernel.mapSharedPage(ppn, this, vpn);
+		return true;
+	}
+
+	/**
+	 * Give this process a private copy of the specified copy-on-write page,
+	 * paging in the shared copy first if it has been evicted.
+	 */
+	protected boolean copyOnWrite(int vpn) {
+		VMKernel.vmLock.acquire();
+
+		TranslationEntry entry = pageTable[vpn];
+		boolean copied = entry.valid || pageIn(vpn);
+
+		// the page may have been copied while this process waited for vmLock
+		if (copied && entry.readOnly) {
+			faultType = FaultStatistics.faultCopyOnWrite;
+
+			int sharedPPN = entry.ppn;
+			int s = pageSections[vpn];
+			int spn = vpn - coff.getSection(s).getFirstVPN();
+
+			if (ownsTLB())
+				invalidateTLBEntry(vpn);
+
+			// a page no other process maps is taken rather than copied
+			if (image.takeSharedPage(s, spn)) {
+				VMKernel.unmapSharedPage(sharedPPN, this, vpn);
+
+				entry.readOnly = false;
+				entry.used = true;
+				entry.dirty = true;
+				VMKernel.mapPrivatePage(sharedPPN, this, vpn);
+
+				VMKernel.vmLock.release();
+				return true;
+			}
+
+			// allocating the copy must not evict the page being copied
+			VMKernel.pinPage(sharedPPN);
+			int ppn = allocatePage();
+			VMKernel.unpinPage(sharedPPN);
+
+			copied = (ppn != -1);
+			if (copied) {
+				byte[] memory = Machine.processor().getMemory();
+				System.arraycopy(memory, sharedPPN * pageSize, memory, ppn
+						* pageSize, pageSize);
+
+				VMKernel.unmapSharedPage(sharedPPN, this, vpn);
+				releaseSharedPage(vpn);
+
+				entry.ppn = ppn;
+				entry.readOnly = false;
+				entry.used = true;
+				entry.dirty = true;
+				VMKernel.mapPrivatePage(ppn, this, vpn);
+
+				Lib.debug(dbgVM, "copied vpn " + vpn + " on write");
+			}
+		}
+
+		VMKernel.vmLock.release();
+		return copied;
+	}
+
+	/**
+	 * Copies are backed by swap, so none are reserved.
+	 */
+	protected boolean reservesCopyPages() {
+		return false;
+	}
+
+	/**
+	 * Allocate a private physical page, evicting a page if none are free.
+	 *
+	 * @return the physical page number, or -1 if no page could be freed.
+	 */
+	private int allocatePage() {
+		while (true) {
+			int ppn = UserKernel.allocatePage();
+			if (ppn != -1 || !VMKernel.evictPage())
+				return ppn;
+		}
+	}
+
+	/**
+	 * Remove the specified page from physical memory. A shared page is
+	 * returned to the executable cache, which frees it once no process maps
+	 * it. A private page is freed, after being written to swap if it has
+	 * been written since it was last loaded. Called by the kernel, with
+	 * <tt>VMKernel.vmLock</tt> held, when it evicts one of this process's
+	 * pages.
+	 *
+	 * @param vpn the virtual page to evict.
+	 */
+	void evict(int vpn) {
+		Lib.debug(dbgVM, "evicting vpn " + vpn);
+
+		if (ownsTLB())
+			invalidateTLBEntry(vpn);
+
+		TranslationEntry entry = pageTable[vpn];
+		entry.valid = false;
+
+		if (isMappedPage(vpn)) {
+			VMKernel.unmapSharedPage(entry.ppn, this, vpn);
+
+			FileMapping mapping = pageMappings[vpn];
+			mapping.file.releasePage(vpn - mapping.firstVPN, entry.dirty, false);
+			return;
+		}
+
+		if (isSharedPage(vpn)) {
+			VMKernel.unmapSharedPage(entry.ppn, this, vpn);
+			releaseSharedPage(vpn);
+			return;
+		}
+
+		VMKernel.unmapPrivatePage(entry.ppn);
+
+		if (entry.dirty)
+			swapOut(vpn);
+
+		UserKernel.freePage(entry.ppn);
+	}
+
+	/**
+	 * Return the page table entry for the specified page.
+	 *
+	 * @param vpn the virtual page number.
+	 * @return the page table entry.
+	 */
+	TranslationEntry getEntry(int vpn) {
+		return pageTable[vpn];
+	}
+
+	/**
+	 * Write the specified page to swap, along with the neighbouring resident
+	 * pages that are dirty but have not been used recently, up to the cluster
+	 * size, into adjacent slots with a single write. The neighbours stay
+	 * resident, but are now clean, so evicting them later costs nothing.
+	 *
+	 * <p>
+	 * The write blocks, and this process may run in the meantime. So that it
+	 * cannot change a neighbour after the neighbour has been copied and before
+	 * it is marked clean, the neighbours are invalid and pinned for the length
+	 * of the write; touching one faults and waits for <tt>vmLock</tt>.
+	 */
+	private void swapOut(int vpn) {
+		if (swapSlots == null) {
+			swapSlots = new int[pageTable.length];
+			Arrays.fill(swapSlots, -1);
+		}
+
+		int first = vpn, last = vpn;
+		while (last - first + 1 < VMKernel.swapCluster) {
+			if (first > 0 && isCleanable(first - 1))
+				first--;
+			else if (last + 1 < pageTable.length && isCleanable(last + 1))
+				last++;
+			else
+				break;
+		}
+
+		int count = last - first + 1;
+		int[] ppns = new int[count];
+		for (int i = 0; i < count; i++) {
+			int page = first + i;
+			TranslationEntry entry = pageTable[page];
+
+			if (page != vpn) {
+				if (ownsTLB())
+					invalidateTLBEntry(page);
+
+				entry.valid = false;
+				VMKernel.pinPage(entry.ppn);
+			}
+
+			ppns[i] = entry.ppn;
+			if (swapSlots[page] != -1)
+				VMKernel.swap.free(swapSlots[page]);
+		}
+
+		int slot = VMKernel.swap.allocate(count);
+		VMKernel.swap.write(slot, ppns, count);
+
+		for (int i = 0; i < count; i++) {
+			int page = first + i;
+			TranslationEntry entry = pageTable[page];
+
+			swapSlots[page] = slot + i;
+			entry.dirty = false;
+
+			if (page != vpn) {
+				VMKernel.unpinPage(entry.ppn);
+				entry.valid = true;
+			}
+		}
+	}
+
+	private boolean isCleanable(int vpn) {
+		TranslationEntry entry = pageTable[vpn];
+		return entry != null && entry.valid && entry.dirty && !entry.used
+				&& !isSharedPage(vpn) && !isMappedPage(vpn)
+				&& !VMKernel.isPinned(entry.ppn);
+	}
+
+	/**
+	 * Handle the mmap() system call. The whole file is mapped, starting at
+	 * the specified page-aligned address, which must not overlap any page
+	 * already in the address space; the page table grows to cover it.
+	 */
+	protected int handleMmap(int fd, int address) {
+		OpenFile file = getOpenFile(fd);
+		if (file == null || file.getFileSystem() == null || isMapped(fd)
+				|| file.length() < 0 || address < 0
+				|| Processor.offsetFromAddress(address) != 0)
+			return -1;
+
+		int length = file.length();
+		if (address + length < address)
+			return -1;
+
+		VMKernel.vmLock.acquire();
+
+		MappedFile mappedFile = VMKernel.openMappedFile(file);
+		if (mappedFile == null) {
+			VMKernel.vmLock.release();
+			return -1;
+		}
+
+		int firstVPN = Processor.pageFromAddress(address);
+		int numMappedPages = mappedFile.getNumPages();
+		for (int vpn = firstVPN; vpn < firstVPN + numMappedPages; vpn++) {
+			if (vpn < pageTable.length && pageTable[vpn] != null) {
+				VMKernel.closeMappedFile(mappedFile);
+				VMKernel.vmLock.release();
+				return -1;
+			}
+		}
+
+		if (firstVPN + numMappedPages > pageTable.length)
+			growPageTable(firstVPN + numMappedPages);
+
+		FileMapping mapping = new FileMapping(mappedFile, firstVPN);
+		for (int vpn = firstVPN; vpn < firstVPN + numMappedPages; vpn++) {
+			pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false,
+					false);
+			pageMappings[vpn] = mapping;
+		}
+
+		if (fileMappings == null)
+			fileMappings = new HashMap<Integer, FileMapping>();
+		fileMappings.put(fd, mapping);
+
+		VMKernel.vmLock.release();
+
+		Lib.debug(dbgVM, "mapped " + mappedFile.getName() + " at vpn "
+				+ firstVPN + " (" + numMappedPages + " pages)");
+		return mappedFile.getLength();
+	}
+
+	protected boolean isMapped(int fd) {
+		return fileMappings != null && fileMappings.containsKey(fd);
+	}
+
+	protected void unmap(int fd) {
+		VMKernel.vmLock.acquire();
+		unmapPages(fileMappings.remove(fd));
+		VMKernel.vmLock.release();
+	}
+
+	/**
+	 * Remove every page of a file mapping from the address space, writing
+	 * back the pages this process has dirtied. Must be called with
+	 * <tt>VMKernel.vmLock</tt> held.
+	 */
+	private void unmapPages(FileMapping mapping) {
+		int numMappedPages = mapping.file.getNumPages();
+
+		for (int vpn = mapping.firstVPN; vpn < mapping.firstVPN
+				+ numMappedPages; vpn++) {
+			TranslationEntry entry = pageTable[vpn];
+
+			if (entry.valid) {
+				if (ownsTLB())
+					invalidateTLBEntry(vpn);
+
+				entry.valid = false;
+				VMKernel.unmapSharedPage(entry.ppn, this, vpn);
+				mapping.file.releasePage(vpn - mapping.firstVPN, entry.dirty,
+						true);
+			}
+
+			pageTable[vpn] = null;
+			pageMappings[vpn] = null;
+		}
+
+		VMKernel.closeMappedFile(mapping.file);
+	}
+
+	/**
+	 * Extend the page table, and the tables indexed by virtual page, to the
+	 * specified number of pages. The new pages are not part of the address
+	 * space until they are given page table entries.
+	 */
+	private void growPageTable(int length) {
+		int oldLength = pageTable.length;
+
+		pageTable = Arrays.copyOf(pageTable, length);
+
+		pageSections = Arrays.copyOf(pageSections, length);
+		Arrays.fill(pageSections, oldLength, length, -1);
+
+		if (swapSlots != null) {
+			swapSlots = Arrays.copyOf(swapSlots, length);
+			Arrays.fill(swapSlots, oldLength, length, -1);
+		}
+
+		if (pageMappings == null)
+			pageMappings = new FileMapping[length];
+		else
+			pageMappings = Arrays.copyOf(pageMappings, length);
+
+		if (!Machine.processor().hasTLB())
+			Machine.processor().setPageTable(pageTable);
+	}
+
+	private boolean isMappedPage(int vpn) {
+		return pageMappings != null && vpn < pageMappings.length
+				&& pageMappings[vpn] != null;
+	}
+
+	/**
+	 * Test whether the TLB holds this process's translations, which is the
+	 * case only while it is the current process.
+	 */
+	private boolean ownsTLB() {
+		return Machine.processor().hasTLB()
+				&& UserKernel.currentProcess() == this;
+	}
+
+	/**
+	 * Load the translation for the specified resident page into the TLB,
+	 * replacing an invalid entry if there is one, or else the entry chosen by
+	 * the kernel's TLB replacement policy.
+	 */
+	private void loadTLBEntry(int vpn) {
+		int victim = chooseTLBVictim();
+		syncTLBEntry(victim);
+
+		Machine.processor().writeTLBEntry(victim, newTLBEntry(vpn));
+	}
+
+	/**
+	 * Return the TLB entry to replace: an invalid entry if there is one, or
+	 * else a random entry or the entry chosen by a clock sweep, as selected
+	 * by <tt>VMKernel.randomTLBReplacement</tt>. The clock sweep clears the
+	 * used bit of each entry it passes over, after copying it back to the
+	 * page table, and stops at the first entry that is not used.
+	 */
+	private int chooseTLBVictim() {
+		Processor processor = Machine.processor();
+		int tlbSize = processor.getTLBSize();
+
+		for (int i = 0; i < tlbSize; i++) {
+			if (!processor.readTLBEntry(i).valid)
+				return i;
+		}
+
+		if (VMKernel.randomTLBReplacement)
+			return Lib.random(tlbSize);
+
+		while (true) {
+			int i = tlbHand;
+			tlbHand = (tlbHand + 1) % tlbSize;
+
+			TranslationEntry tlbEntry = processor.readTLBEntry(i);
+			if (!tlbEntry.used)
+				return i;
+
+			syncTLBEntry(i);
+			tlbEntry.used = false;
+			processor.writeTLBEntry(i, tlbEntry);
+		}
+	}
+
+	/**
+	 * Return a TLB entry for the specified resident page. Its used and dirty
+	 * bits start out clear, and are copied back to the page table when the
+	 * entry is replaced or the TLB is flushed.
+	 */
+	private TranslationEntry newTLBEntry(int vpn) {
+		TranslationEntry entry = pageTable[vpn];
+		return new TranslationEntry(vpn, entry.ppn, true, entry.readOnly,
+				false, false);
+	}
+
+	/**
+	 * Save the TLB in this process's shadow TLB, after copying back the used
+	 * and dirty bits, and invalidate it.
+	 */
+	private void saveTLB() {
+		Processor processor = Machine.processor();
+
+		if (tlbShadow == null)
+			tlbShadow = new TranslationEntry[processor.getTLBSize()];
+
+		for (int i = 0; i < tlbShadow.length; i++) {
+			syncTLBEntry(i);
+			tlbShadow[i] = processor.readTLBEntry(i);
+			processor.writeTLBEntry(i, new TranslationEntry());
+		}
+	}
+
+	/**
+	 * Reload the TLB from the shadow TLB saved when this process was switched
+	 * out. An entry whose page has since been evicted, copied on write or
+	 * unmapped no longer matches the page table, and is left invalid to be
+	 * refilled on the next miss.
+	 */
+	private void restoreTLB() {
+		if (tlbShadow == null || pageTable == null)
+			return;
+
+		Processor processor = Machine.processor();
+
+		for (int i = 0; i < tlbShadow.length; i++) {
+			TranslationEntry saved = tlbShadow[i];
+
+			if (saved.valid && isCurrentTranslation(saved))
+				processor.writeTLBEntry(i, newTLBEntry(saved.vpn));
+			else
+				processor.writeTLBEntry(i, new TranslationEntry());
+		}
+	}
+
+	private boolean isCurrentTranslation(TranslationEntry saved) {
+		if (saved.vpn >= pageTable.length)
+			return false;
+
+		TranslationEntry entry = pageTable[saved.vpn];
+		return entry != null && entry.valid && entry.ppn == saved.ppn
+				&& entry.readOnly == saved.readOnly;
+	}
+
+	/**
+	 * Copy the used and dirty bits of every TLB entry into the page table.
+	 */
+	void syncTLB() {
+		for (int i = 0; i < Machine.processor().getTLBSize(); i++)
+			syncTLBEntry(i);
+	}
+
+	private void syncTLBEntry(int i) {
+		TranslationEntry tlbEntry = Machine.processor().readTLBEntry(i);
+		if (pageTable == null || !tlbEntry.valid
+				|| tlbEntry.vpn >= pageTable.length)
+			return;
+
+		TranslationEntry entry = pageTable[tlbEntry.vpn];
+		if (entry != null && entry.valid && entry.ppn == tlbEntry.ppn) {
+			entry.used |= tlbEntry.used;
+			entry.dirty |= tlbEntry.dirty;
+		}
+	}
+
+	/**
+	 * Remove the translation for the specified page from the TLB, if present,
+	 * after copying back its used and dirty bits.
+	 */
+	private void invalidateTLBEntry(int vpn) {
+		Processor processor = Machine.processor();
+
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			TranslationEntry tlbEntry = processor.readTLBEntry(i);
+			if (tlbEntry.valid && tlbEntry.vpn == vpn) {
+				syncTLBEntry(i);
+				processor.writeTLBEntry(i, new TranslationEntry());
+			}
+		}
+	}
+
+	/**
+	 * Invalidate every TLB entry, after copying back the used and dirty bits.
+	 */
+	private void flushTLB() {
+		Processor processor = Machine.processor();
+
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			syncTLBEntry(i);
+			processor.writeTLBEntry(i, new TranslationEntry());
+		}
+	}
+
+	/**
+	 * The COFF section each page is loaded from, or -1 for pages that are
+	 * zero-filled.
+	 */
+	protected int[] pageSections;
+
+	/**
+	 * The swap slot holding each page, or -1 if it has never been swapped
+	 * out; <tt>null</tt> until the first page is swapped out.
+	 */
+	protected int[] swapSlots;
+
+	/**
+	 * The file mapping each page belongs to, or <tt>null</tt> for pages not
+	 * mapped from a file; <tt>null</tt> until the first file is mapped.
+	 */
+	private FileMapping[] pageMappings;
+
+	/** The file mappings, by file descriptor. */
+	private HashMap<Integer, FileMapping> fileMappings;
+
+	/**
+	 * The TLB entries saved when this process was last switched out;
+	 * <tt>null</tt> until the first switch.
+	 */
+	private TranslationEntry[] tlbShadow;
+
+	/**
+	 * How the fault being handled was served, as one of the
+	 * <tt>FaultStatistics.faultZZZ</tt> constants, or -1 if no page was
+	 * loaded.
+	 */
+	private int faultType = -1;
+
+	/** The next TLB entry the clock sweep considers. */
+	private int tlbHand = 0;
+
+	/**
+	 * A file mapped into this process's address space.
+	 */
+	private static class FileMapping {
+		FileMapping(MappedFile file, int firstVPN) {
+			this.file = file;
+			this.firstVPN = firstVPN;
+		}
+
+		MappedFile file;
+
+		/** The virtual page the first page of the file is mapped at. */
+		int firstVPN;
 	}
 
 	private static final int pageSize = Processor.pageSize;
@@ -0,0 +1,85 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.vm.*;
+
+/**
+ * The WSClock policy: a clock over physical memory that also tracks when each
+ * page was last seen referenced, and prefers to evict clean pages that have
+ * left the working set.
+ *
+ * <p>
+ * A page whose reference bit is set has its bit cleared and its time of last
+ * use set to the current time. A page unreferenced for longer than the
+ * working set window, named by the <tt>nachos.conf</tt> key
+ * <tt>VMKernel.workingSetWindow</tt> in ticks, is outside the working set;
+ * the hand stops at the first such page that is clean. Since swap writes are
+ * synchronous here, rather than scheduled while the hand moves on, a full
+ * sweep without a clean candidate evicts the first dirty page outside the
+ * working set, or failing that the least recently used page.
+ */
+public class WSClockPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new WSClock policy.
+	 */
+	public WSClockPolicy() {
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		resident = new boolean[numPhysPages];
+		lastUsed = new long[numPhysPages];
+
+		window = Config.getInteger("VMKernel.workingSetWindow", 20000);
+		Lib.assertTrue(window >= 0);
+	}
+
+	public void pageLoaded(int ppn) {
+		resident[ppn] = true;
+		lastUsed[ppn] = Machine.timer().getTime();
+	}
+
+	public void pageRemoved(int ppn) {
+		resident[ppn] = false;
+	}
+
+	public int chooseVictim() {
+		long time = Machine.timer().getTime();
+		int oldDirty = -1, leastRecent = -1;
+
+		for (int i = 0; i < resident.length; i++) {
+			int ppn = hand;
+			hand = (hand + 1) % resident.length;
+
+			if (!resident[ppn] || VMKernel.isPinned(ppn))
+				continue;
+
+			if (VMKernel.isUsed(ppn)) {
+				VMKernel.clearUsed(ppn);
+				lastUsed[ppn] = time;
+			}
+			else if (time - lastUsed[ppn] > window) {
+				if (!VMKernel.isDirty(ppn))
+					return ppn;
+
+				if (oldDirty == -1)
+					oldDirty = ppn;
+			}
+
+			if (leastRecent == -1 || lastUsed[ppn] < lastUsed[leastRecent])
+				leastRecent = ppn;
+		}
+
+		if (oldDirty != -1)
+			return oldDirty;
+
+		return leastRecent;
+	}
+
+	private boolean[] resident;
+
+	/** The time each page was last seen referenced. */
+	private long[] lastUsed;
+
+	/** The working set window, in ticks. */
+	private long window;
+
+	private int hand = 0;
+}